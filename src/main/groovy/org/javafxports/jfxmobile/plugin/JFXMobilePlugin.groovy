@@ -64,13 +64,13 @@ import org.javafxports.jfxmobile.plugin.android.task.Dex
 import org.javafxports.jfxmobile.plugin.android.task.Install
 import org.javafxports.jfxmobile.plugin.android.task.MergeAssets
 import org.javafxports.jfxmobile.plugin.android.task.MergeResources
+import org.javafxports.jfxmobile.plugin.android.task.PackagingCache
 import org.javafxports.jfxmobile.plugin.android.task.ProcessResources
 import org.javafxports.jfxmobile.plugin.android.task.Retrobuffer
 import org.javafxports.jfxmobile.plugin.android.task.Retrolambda
 import org.javafxports.jfxmobile.plugin.android.task.ValidateManifest
 import org.javafxports.jfxmobile.plugin.android.task.ValidateSigning
 import org.javafxports.jfxmobile.plugin.android.task.WriteDexInputListFile
-import org.javafxports.jfxmobile.plugin.android.task.ZipAlign
 import org.javafxports.jfxmobile.plugin.embedded.RemotePlatformConfiguration
 import org.javafxports.jfxmobile.plugin.embedded.task.CopyRemoteDir
 import org.javafxports.jfxmobile.plugin.embedded.task.RunEmbedded
@@ -347,12 +347,18 @@ class JFXMobilePlugin implements Plugin<Project> {
                 }
 
                 // NOTE: from is set after all configuration for androidRuntime has completed
-                project.tasks.copyClassesForDesugar.from {
-                    (project.configurations.androidRuntime - project.configurations.androidRuntimeNoRetrolambda - project.configurations.androidSdk).filter {
-                        !it.isDirectory()
-                    }.collect {
-                        project.logger.info("Apply Desugar to $it")
-                        project.zipTree(it)
+                def desugarJars = (project.configurations.androidRuntime - project.configurations.androidRuntimeNoRetrolambda - project.configurations.androidSdk).filter {
+                    !it.isDirectory()
+                }
+                if (project.tasks.applyRetrobuffer.enabled) {
+                    // retrobuffer reads the classes straight from the jars, no need to extract them first
+                    project.tasks.applyRetrobuffer.inputJars = desugarJars
+                } else {
+                    project.tasks.copyClassesForDesugar.from {
+                        desugarJars.collect {
+                            project.logger.info("Apply Desugar to $it")
+                            project.zipTree(it)
+                        }
                     }
                 }
 
@@ -403,6 +409,7 @@ class JFXMobilePlugin implements Plugin<Project> {
 
         ValidateManifest validateManifestTask = project.tasks.create("validateManifest", ValidateManifest)
         validateManifestTask.conventionMapping.map("output") { project.file("${project.jfxmobile.android.temporaryDirectory}/AndroidManifest.xml") }
+        validateManifestTask.conventionMapping.map("extractNativeLibs") { project.jfxmobile.android.extractNativeLibs }
         androidTasks.add(validateManifestTask)
 
         CreateManifestKeepList manifestKeepListTask = project.tasks.create("collectMultiDexComponents", CreateManifestKeepList)
@@ -531,7 +538,7 @@ class JFXMobilePlugin implements Plugin<Project> {
         androidTasks.add(mergeAssetsTask)
 
         SigningConfig releaseSigningConfig = project.jfxmobile.android.signingConfig
-        ZipAlign apkReleaseTask = createApkTasks('Release', releaseSigningConfig)
+        Apk apkReleaseTask = createApkTasks('Release', releaseSigningConfig)
 
         DefaultTask androidReleaseTask = project.tasks.create("androidRelease", DefaultTask)
         androidReleaseTask.description("Generates a release Android apk containing the JavaFX application.")
@@ -547,7 +554,7 @@ class JFXMobilePlugin implements Plugin<Project> {
             throw new BuildException("Failed to get default debug keystore location.", e);
         }
 
-        ZipAlign apkDebugTask = createApkTasks('Debug', debugSigningConfig)
+        Apk apkDebugTask = createApkTasks('Debug', debugSigningConfig)
 
         Install installDebugTask = project.tasks.create("androidInstall", Install)
         installDebugTask.description("Launch the application on a connected android device.")
@@ -566,7 +573,7 @@ class JFXMobilePlugin implements Plugin<Project> {
         }
     }
 
-    private ZipAlign createApkTasks(String variant, SigningConfig signingConfig) {
+    private Apk createApkTasks(String variant, SigningConfig signingConfig) {
         ProcessResources processResourcesTask = project.tasks.create("processAndroidResources${variant}", ProcessResources)
         if ("Debug" == variant) {
             processResourcesTask.setDebuggable(true)
@@ -576,6 +583,7 @@ class JFXMobilePlugin implements Plugin<Project> {
         processResourcesTask.conventionMapping.map("assetsDir") { project.tasks.mergeAndroidAssets.outputDir }
         processResourcesTask.conventionMapping.map("packageOutputFile") { project.file("${project.jfxmobile.android.resourcesDirectory}/resources.ap_") }
         processResourcesTask.conventionMapping.map("aaptExe") { project.file("${project.jfxmobile.android.buildToolsDir}/aapt${platformExtension()}") }
+        processResourcesTask.conventionMapping.map("noCompressExtensions") { project.jfxmobile.android.compressionOptions.noCompressExtensions }
         processResourcesTask.dependsOn project.tasks.processAndroidResources, project.tasks.mergeAndroidResources, project.tasks.mergeAndroidAssets
         androidTasks.add(processResourcesTask)
 
@@ -589,7 +597,7 @@ class JFXMobilePlugin implements Plugin<Project> {
                 "${project.jfxmobile.android.nativeDirectory}"
             ).files
         }
-        apkTask.conventionMapping.map("outputFile") { project.file("${project.jfxmobile.android.installDirectory}/${project.name}-unaligned.apk") }
+        apkTask.conventionMapping.map("outputFile") { project.file("${project.jfxmobile.android.installDirectory}/${project.name}.apk") }
         apkTask.conventionMapping.map("mainResourcesDirectory") {
             def mainResourcesOutputDir = project.tasks.processResources.destinationDir
             mainResourcesOutputDir != null && mainResourcesOutputDir.isDirectory() ? mainResourcesOutputDir : null
@@ -604,6 +612,31 @@ class JFXMobilePlugin implements Plugin<Project> {
             }
         }
         apkTask.conventionMapping.map("packagingOptions") { project.jfxmobile.android.packagingOptions }
+        apkTask.conventionMapping.map("compressionLevel") { project.jfxmobile.android.compressionOptions.getLevel(variant) }
+        apkTask.conventionMapping.map("noCompress") { project.jfxmobile.android.noCompressPatterns }
+        apkTask.conventionMapping.map("storeIfNotSmaller") { project.jfxmobile.android.compressionOptions.storeIfNotSmaller }
+        apkTask.conventionMapping.map("minSdkVersion") { project.jfxmobile.android.minSdkVersion }
+        apkTask.conventionMapping.map("incremental") { "Debug" == variant }
+        apkTask.conventionMapping.map("indexFile") { project.file("${project.jfxmobile.android.temporaryDirectory}/apk${variant}.index") }
+        apkTask.conventionMapping.map("cacheDirectory") { project.file("${project.jfxmobile.android.temporaryDirectory}/apk-cache") }
+        apkTask.conventionMapping.map("maxCacheSize") { PackagingCache.DEFAULT_MAX_SIZE }
+        apkTask.conventionMapping.map("jarResourceIndexFile") { project.file("${project.jfxmobile.android.temporaryDirectory}/apk-jar-resources.index") }
+        apkTask.conventionMapping.map("debugMode") { "Debug" == variant }
+        apkTask.conventionMapping.map("strippedLibrariesDirectory") { project.file("${project.jfxmobile.android.temporaryDirectory}/apk-stripped-libs") }
+        apkTask.conventionMapping.map("splitAbis") {
+            def abiSplits = project.jfxmobile.android.abiSplits
+            if ("Release" != variant || !abiSplits.enable) {
+                return Collections.<String> emptySet()
+            }
+            if (!abiSplits.include.isEmpty()) {
+                return abiSplits.include
+            }
+            // one split for every ABI that has native libraries
+            new TreeSet<String>(apkTask.getJniFolders().findAll { it.isDirectory() }.collectMany { jniFolder ->
+                jniFolder.listFiles().findAll { it.isDirectory() }.collect { it.name }
+            })
+        }
+        apkTask.conventionMapping.map("universalApk") { project.jfxmobile.android.abiSplits.universalApk }
         apkTask.dependsOn processResourcesTask, project.tasks.dex
         androidTasks.add(apkTask)
 
@@ -614,14 +647,7 @@ class JFXMobilePlugin implements Plugin<Project> {
             apkTask.dependsOn validateSigningTask
         }
 
-        ZipAlign zipAlignTask = project.tasks.create("zipalign${variant}", ZipAlign)
-        zipAlignTask.conventionMapping.map("inputFile") { apkTask.outputFile }
-        zipAlignTask.conventionMapping.map("outputFile") { project.file("${project.jfxmobile.android.installDirectory}/${project.name}.apk") }
-        zipAlignTask.conventionMapping.map("zipAlignExe") { project.file("${project.jfxmobile.android.buildToolsDir}/zipalign${platformExtension()}") }
-        zipAlignTask.dependsOn apkTask
-        androidTasks.add(zipAlignTask)
-
-        return zipAlignTask
+        return apkTask
     }
 
     private void createIosTasks() {
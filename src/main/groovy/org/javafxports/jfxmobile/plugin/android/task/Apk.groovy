@@ -38,14 +38,23 @@ import com.android.ide.common.signing.KeystoreHelper
 import com.android.sdklib.build.DuplicateFileException
 import org.gradle.api.DefaultTask
 import org.gradle.api.GradleException
+import org.gradle.api.tasks.Input
 import org.gradle.api.tasks.InputDirectory
 import org.gradle.api.tasks.InputFile
 import org.gradle.api.tasks.InputFiles
+import org.gradle.api.tasks.Internal
 import org.gradle.api.tasks.Nested
 import org.gradle.api.tasks.Optional
 import org.gradle.api.tasks.OutputFile
+import org.gradle.api.tasks.OutputFiles
 import org.gradle.api.tasks.TaskAction
 
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+
 /**
  *
  * @author joeri
@@ -75,9 +84,86 @@ class Apk extends DefaultTask {
     @Nested
     PackagingOptions packagingOptions
 
+    @Input
+    Integer compressionLevel
+
+    @Input
+    Set<String> noCompress
+
+    @Input
+    Boolean storeIfNotSmaller
+
+    @Input
+    String minSdkVersion
+
     @OutputFile
     File outputFile
 
+    /**
+     * Whether the apk is updated in place, writing only the entries that changed since the
+     * previous build, instead of being packaged again from scratch.
+     */
+    @Internal
+    Boolean incremental
+
+    @Internal
+    File indexFile
+
+    /**
+     * The directory where the compressed files and the digests of the entries are kept
+     * between builds.
+     */
+    @Internal
+    File cacheDirectory
+
+    @Internal
+    Long maxCacheSize
+
+    /**
+     * Records which entries of the dependency jars are java resources, so that unchanged jars
+     * are not scanned again.
+     */
+    @Internal
+    File jarResourceIndexFile
+
+    /**
+     * Whether the apk is debuggable. The native libraries are only stripped of their debug
+     * information when it is not.
+     */
+    @Input
+    Boolean debugMode
+
+    /**
+     * The directory in which the native libraries stripped of their debug information are
+     * kept between builds.
+     */
+    @Internal
+    File strippedLibrariesDirectory
+
+    /**
+     * The ABIs that get their own apk, with only their native libraries. When empty, a
+     * single apk is packaged with the native libraries of all ABIs.
+     */
+    @Input
+    Set<String> splitAbis
+
+    /**
+     * Whether an apk with the native libraries of all ABIs is also packaged, in
+     * outputFile, when the apk is split by ABI.
+     */
+    @Input
+    Boolean universalApk
+
+    @OutputFiles
+    Collection<File> getSplitOutputFiles() {
+        getSplitAbis().collect { splitOutputFile(it) }
+    }
+
+    File splitOutputFile(String abi) {
+        File outputFile = getOutputFile()
+        new File(outputFile.parentFile, outputFile.name.replaceFirst(/\.apk$/, '') + "-${abi}.apk")
+    }
+
     @TaskAction
     void apk() {
         SigningConfig signingConfig = getSigningConfig()
@@ -95,44 +181,127 @@ class Apk extends DefaultTask {
             throw new GradleException("You need to configure a valid signingConfig when releasing an APK.")
         }
 
+        PackagingCache cache = new PackagingCache(getCacheDirectory(), getMaxCacheSize())
+        NativeLibraryStripper stripper = getDebugMode() ? null : new NativeLibraryStripper(getStrippedLibrariesDirectory())
         try {
-            ApkBuilder apkBuilder = new ApkBuilder(getOutputFile().absolutePath, getResourceFile().absolutePath,
-                    null, certificateInfo.key, certificateInfo.certificate, getPackagingOptions(), null)
+            int minSdk = getMinSdkVersion().isInteger() ? getMinSdkVersion().toInteger() : 1
 
-            getDexDirectory().listFiles().findAll {
-                it.name.endsWith(".dex")
-            }.each {
-                apkBuilder.addFile(it, it.name)
-            }
+            // devices from API 24 verify the v2 signature, the v1 signature is only needed before
+            boolean v2SigningEnabled = signingConfig.isV2SigningEnabled()
+            boolean v1SigningEnabled = signingConfig.isV1SigningEnabled() && (!v2SigningEnabled || minSdk < 24)
+            project.logger.info("apk: v1 signing ${v1SigningEnabled ? 'enabled' : 'disabled'}, v2 signing ${v2SigningEnabled ? 'enabled' : 'disabled'}")
 
-            if (getMainResourcesDirectory() != null) {
-                apkBuilder.addSourceFolder(getMainResourcesDirectory())
-            }
-            if (getAndroidResourcesDirectory() != null) {
-                apkBuilder.addSourceFolder(getAndroidResourcesDirectory())
-            }
+            int threads = project.gradle.startParameter.maxWorkerCount
 
             // add resources for all jar dependencies, except for android platform's android.jar
-            project.configurations.androidRuntime.filter {
+            List<File> jars = project.configurations.androidRuntime.filter {
                 it.name.endsWith('.jar') && !it.name.endsWith('android.jar')
-            }.each() {
-                project.logger.info("apk: adding ${it} to packager.addResourcesFromJar()")
-                apkBuilder.addResourcesFromJar(project.file(it))
+            }.collect {
+                project.file(it)
             }
+            project.logger.info("apk: scanning ${jars.size()} jars for resources with ApkBuilder.getJarResources()")
+            Map<File, List<String>> jarResources = ApkBuilder.getJarResources(jars, getJarResourceIndexFile(), threads)
 
-            if (getJniFolders() != null) {
-                getJniFolders().each {
-                    if (it.isDirectory()) {
-                        apkBuilder.addNativeLibraries(it)
-                    }
+            Set<String> splitAbis = getSplitAbis()
+            if (splitAbis.isEmpty()) {
+                File indexFile = getIndexFile()
+                if (getIncremental()) {
+                    indexFile.parentFile.mkdirs()
+                } else {
+                    indexFile.delete()
+                    indexFile = null
                 }
+
+                packageApk(getOutputFile(), indexFile, null, certificateInfo, minSdk,
+                        v1SigningEnabled, v2SigningEnabled, cache, stripper, jarResources, threads)
+                return
+            }
+
+            // one apk per ABI, and the universal apk with all of them
+            Map<File, Set<String>> apks = new LinkedHashMap<>()
+            splitAbis.each {
+                apks.put(splitOutputFile(it), Collections.singleton(it))
             }
+            if (getUniversalApk()) {
+                apks.put(getOutputFile(), null)
+            } else {
+                getOutputFile().delete()
+            }
+            project.logger.info("apk: packaging ${apks.size()} apks split by ABI: ${splitAbis}")
 
-            apkBuilder.sealApk()
+            // the entries that do not depend on the ABI are only compressed once
+            cache.setKeepInMemory(true)
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, apks.size())))
+            try {
+                List<Future<?>> futures = apks.collect { File apkFile, Set<String> abis ->
+                    executor.submit({
+                        packageApk(apkFile, null, abis, certificateInfo, minSdk, v1SigningEnabled,
+                                v2SigningEnabled, cache, stripper, jarResources, Math.max(1, threads.intdiv(apks.size())))
+                    } as Callable<Void>)
+                }
+                futures.each {
+                    try {
+                        it.get()
+                    } catch (ExecutionException e) {
+                        throw e.cause
+                    }
+                }
+            } finally {
+                executor.shutdownNow()
+                cache.setKeepInMemory(false)
+            }
         } catch (DuplicateFileException e) {
             throw new GradleException(e.getMessage() + ": ${e.archivePath}\nFile 1: ${e.file1}\nFile 2: ${e.file2}")
+        } finally {
+            cache.evict()
+            stripper?.deleteUnused()
         }
     }
 
+    /**
+     * Packages an apk.
+     * @param abis the ABIs whose native libraries are added, or null for all of them
+     * @param jarResources the java resources of the jar dependencies, by jar
+     */
+    void packageApk(File apkFile, File indexFile, Set<String> abis, CertificateInfo certificateInfo, int minSdk,
+            boolean v1SigningEnabled, boolean v2SigningEnabled, PackagingCache cache, NativeLibraryStripper stripper,
+            Map<File, List<String>> jarResources, int threads) {
+        ApkBuilder apkBuilder = new ApkBuilder(apkFile, indexFile, getResourceFile(), null,
+                certificateInfo.key, certificateInfo.certificate, minSdk, v1SigningEnabled, v2SigningEnabled,
+                getPackagingOptions(), null)
+        apkBuilder.setCache(cache)
+        apkBuilder.setDebugMode(getDebugMode())
+        apkBuilder.setNativeLibraryStripper(stripper)
+        apkBuilder.setCompressionPolicy(new CompressionPolicy(getCompressionLevel(), getNoCompress(), getStoreIfNotSmaller()))
+        apkBuilder.setThreadCount(threads)
+        apkBuilder.setAbiFilter(abis)
+
+        getDexDirectory().listFiles().findAll {
+            it.name.endsWith(".dex")
+        }.each {
+            apkBuilder.addFile(it, it.name)
+        }
+
+        if (getMainResourcesDirectory() != null) {
+            apkBuilder.addSourceFolder(getMainResourcesDirectory())
+        }
+        if (getAndroidResourcesDirectory() != null) {
+            apkBuilder.addSourceFolder(getAndroidResourcesDirectory())
+        }
+
+        project.logger.info("apk: adding resources of ${jarResources.size()} jars with packager.addResourcesFromJars()")
+        apkBuilder.addResourcesFromJars(jarResources)
+
+        if (getJniFolders() != null) {
+            getJniFolders().each {
+                if (it.isDirectory()) {
+                    apkBuilder.addNativeLibraries(it)
+                }
+            }
+        }
+
+        apkBuilder.sealApk()
+    }
+
 }
 
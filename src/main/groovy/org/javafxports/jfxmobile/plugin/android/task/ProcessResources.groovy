@@ -32,6 +32,7 @@
 package org.javafxports.jfxmobile.plugin.android.task
 
 import org.gradle.api.DefaultTask
+import org.gradle.api.tasks.Input
 import org.gradle.api.tasks.InputDirectory
 import org.gradle.api.tasks.InputFile
 import org.gradle.api.tasks.Optional
@@ -61,6 +62,9 @@ class ProcessResources extends DefaultTask {
 
     boolean debuggable
 
+    @Input @Optional
+    Set<String> noCompressExtensions
+
     @TaskAction
     void processResources() {
         project.exec {
@@ -78,6 +82,9 @@ class ProcessResources extends DefaultTask {
             }
             args '-0'
             args 'apk'
+            getNoCompressExtensions()?.each {
+                args '-0', it
+            }
         }
     }
 
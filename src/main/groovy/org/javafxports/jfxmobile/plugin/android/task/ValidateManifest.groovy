@@ -33,6 +33,7 @@ package org.javafxports.jfxmobile.plugin.android.task
 
 import org.gradle.api.DefaultTask
 import org.gradle.api.GradleException
+import org.gradle.api.tasks.Input
 import org.gradle.api.tasks.OutputFile
 import org.gradle.api.tasks.TaskAction
 
@@ -50,6 +51,9 @@ class ValidateManifest extends DefaultTask {
     @OutputFile
     File output
 
+    @Input
+    Boolean extractNativeLibs
+
     @TaskAction
     void validateManifest() {
         if (project.jfxmobile.android.manifest != null) {
@@ -58,13 +62,18 @@ class ValidateManifest extends DefaultTask {
                 throw new GradleException("Configured manifest file is invalid: ${project.jfxmobile.android.manifest}")
             }
 
+            if (!getExtractNativeLibs() && !manifestFile.text.contains("android:extractNativeLibs")) {
+                project.logger.warn("The native libraries are stored uncompressed, but ${manifestFile} does not set android:extractNativeLibs=\"false\"")
+            }
             Files.copy(manifestFile.toPath(), getOutput().toPath(), StandardCopyOption.REPLACE_EXISTING)
         } else {
             def projectVersion = project.version == 'unspecified' ? '1.0' : project.version
 
             // creating default AndroidManifest.xml
             project.jfxmobile.android.temporaryDirectory.mkdirs()
-            if (!getOutput().exists()) {
+            String extractNativeLibsAttribute = getExtractNativeLibs() ? "" : " android:extractNativeLibs=\"false\""
+            // a manifest generated before extractNativeLibs was changed is generated again
+            if (!getOutput().exists() || getOutput().text.contains(" android:extractNativeLibs=\"false\"") == getExtractNativeLibs()) {
                 getOutput().withWriter { out ->
                     out.writeLine("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
                     out.writeLine("<manifest xmlns:android=\"http://schemas.android.com/apk/res/android\" package=\"${project.jfxmobile.android.applicationPackage}\" android:versionCode=\"1\" android:versionName=\"${projectVersion}\">")
@@ -73,7 +82,7 @@ class ValidateManifest extends DefaultTask {
                     out.writeLine("\t<uses-permission android:name=\"android.permission.READ_EXTERNAL_STORAGE\"/>")
                     out.writeLine("\t<uses-permission android:name=\"android.permission.WRITE_EXTERNAL_STORAGE\"/>")
                     out.writeLine("\t<uses-sdk android:minSdkVersion=\"${project.jfxmobile.android.minSdkVersion}\" android:targetSdkVersion=\"${project.jfxmobile.android.targetSdkVersion}\"/>")
-                    out.writeLine("\t<application android:label=\"${project.name}\" android:name=\"android.support.multidex.MultiDexApplication\">")
+                    out.writeLine("\t<application android:label=\"${project.name}\" android:name=\"android.support.multidex.MultiDexApplication\"${extractNativeLibsAttribute}>")
                     out.writeLine("\t\t<activity android:name=\"javafxports.android.FXActivity\" android:label=\"${project.name}\" android:configChanges=\"orientation|screenSize\">")
                     out.writeLine("\t\t\t<meta-data android:name=\"main.class\" android:value=\"${project.mainClassName}\"/>")
                     if (project.preloaderClassName != null && !project.preloaderClassName.empty) {
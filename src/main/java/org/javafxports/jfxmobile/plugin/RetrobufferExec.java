@@ -33,28 +33,42 @@ package org.javafxports.jfxmobile.plugin;
 
 import org.gradle.api.Project;
 import org.gradle.api.file.FileCollection;
+import org.gradle.workers.IsolationMode;
+import org.gradle.workers.WorkerExecutor;
+import org.javafxports.retrobuffer.Retrobuffer;
+import org.javafxports.retrobuffer.SystemPropertiesConfig;
 
-import java.io.BufferedWriter;
+import javax.inject.Inject;
 import java.io.File;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.util.Arrays;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.List;
-
+import java.util.Properties;
+
+/**
+ * Runs retrobuffer in a worker daemon of the Gradle worker API. The daemon is
+ * kept alive and reused by later builds of the same Gradle daemon, so that
+ * retrobuffer does not pay for a new JVM and its warm-up on every build. The
+ * options are passed as the same <code>retrobuffer.*</code> properties that
+ * are read from the system properties when retrobuffer is run on its own.
+ */
 public class RetrobufferExec {
 
-    private static final int COMMANDLINE_LENGTH_LIMIT = 3496;
+    private static final String PROPERTY_PREFIX = "-Dretrobuffer.";
 
     private FileCollection retrobufferClasspath;
     private File inputDir;
+    private FileCollection inputJars;
     private File outputDir;
     private List<String> jvmArgs;
 
     private final Project project;
+    private final WorkerExecutor workerExecutor;
 
-    public RetrobufferExec(Project project) {
+    public RetrobufferExec(Project project, WorkerExecutor workerExecutor) {
         this.project = project;
+        this.workerExecutor = workerExecutor;
     }
 
     public FileCollection getRetrobufferClasspath() {
@@ -73,6 +87,14 @@ public class RetrobufferExec {
         this.inputDir = inputDir;
     }
 
+    public FileCollection getInputJars() {
+        return inputJars;
+    }
+
+    public void setInputJars(FileCollection inputJars) {
+        this.inputJars = inputJars;
+    }
+
     public File getOutputDir() {
         return outputDir;
     }
@@ -94,41 +116,56 @@ public class RetrobufferExec {
     }
 
     public void exec() {
-        project.javaexec(exec -> {
-            exec.setClasspath(project.getBuildscript().getConfigurations().getByName("classpath"));
-
-            String path = retrobufferClasspath.getAsPath();
-
-            exec.setMain("org.javafxports.retrobuffer.Main");
-            exec.setJvmArgs(Arrays.asList(
-                    "-Dretrobuffer.inputDir=" + inputDir,
-                    "-Dretrobuffer.outputDir=" + outputDir,
-                    "-Dretrobuffer.classpath=" + path
-            ));
-
-            if (classpathLengthGreaterThanLimit(path)) {
-                try {
-                    File classpathFile = File.createTempFile("inc-", ".path");
-                    try (BufferedWriter writer = Files.newBufferedWriter(classpathFile.toPath(), StandardCharsets.UTF_8)) {
-                        for (File item : this.retrobufferClasspath) {
-                            writer.write(item.toString() + "\n");
-                        }
-                    }
-                    classpathFile.deleteOnExit();
-                    exec.getJvmArgs().add("-Dretrobuffer.classpathFile=" + classpathFile.getAbsolutePath());
-                } catch (IOException e) {
-                }
+        Properties properties = new Properties();
+        if (inputDir != null) {
+            properties.setProperty("retrobuffer.inputDir", inputDir.toString());
+        }
+        properties.setProperty("retrobuffer.outputDir", outputDir.toString());
+        properties.setProperty("retrobuffer.classpath", retrobufferClasspath.getAsPath());
+        if (inputJars != null && !inputJars.isEmpty()) {
+            properties.setProperty("retrobuffer.inputJars", inputJars.getAsPath());
+        }
+
+        List<String> forkJvmArgs = new ArrayList<>();
+        for (String arg : jvmArgs) {
+            if (arg.startsWith(PROPERTY_PREFIX) && arg.contains("=")) {
+                int separator = arg.indexOf('=');
+                properties.setProperty(arg.substring(2, separator), arg.substring(separator + 1));
             } else {
-                exec.getJvmArgs().add("-Dretrobuffer.classpath=" + path);
-            }
-
-            for (String arg : jvmArgs) {
-                exec.getJvmArgs().add(arg);
+                forkJvmArgs.add(arg);
             }
+        }
+
+        workerExecutor.submit(RetrobufferWorker.class, config -> {
+            config.setIsolationMode(IsolationMode.PROCESS);
+            config.setDisplayName("Retrobuffer " + outputDir);
+            config.classpath(project.getBuildscript().getConfigurations().getByName("classpath"));
+            config.forkOptions(options -> options.jvmArgs(forkJvmArgs));
+            config.setParams(properties);
         });
+        workerExecutor.await();
     }
 
-    private static boolean classpathLengthGreaterThanLimit(String path) {
-        return path.length() > COMMANDLINE_LENGTH_LIMIT;
+    public static class RetrobufferWorker implements Runnable {
+
+        private final Properties properties;
+
+        @Inject
+        public RetrobufferWorker(Properties properties) {
+            this.properties = properties;
+        }
+
+        @Override
+        public void run() {
+            // retrobuffer replaces the context class loader, which would otherwise leak into the next work item
+            ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+            try {
+                Retrobuffer.run(new SystemPropertiesConfig(properties));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                Thread.currentThread().setContextClassLoader(contextClassLoader);
+            }
+        }
     }
 }
@@ -36,19 +36,28 @@ import org.gradle.api.artifacts.Configuration;
 import org.gradle.api.artifacts.Dependency;
 import org.gradle.api.file.FileCollection;
 import org.gradle.util.VersionNumber;
+import org.gradle.workers.IsolationMode;
+import org.gradle.workers.WorkerExecutor;
 
-import java.io.BufferedWriter;
+import javax.inject.Inject;
 import java.io.File;
-import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.util.Arrays;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Properties;
 import java.util.stream.Collectors;
 
+/**
+ * Runs retrolambda in a worker daemon of the Gradle worker API, which is kept
+ * alive and reused by later builds of the same Gradle daemon. Versions of
+ * retrolambda older than 2.1.0 can not be run in process, so those are still
+ * run in a new JVM. In both cases the options are passed as the
+ * <code>retrolambda.*</code> system properties that retrolambda reads.
+ */
 public class RetrolambdaExec {
 
-    private static final int COMMANDLINE_LENGTH_LIMIT = 3496;
+    private static final String PROPERTY_PREFIX = "-Dretrolambda.";
 
     private FileCollection retrolambdaClasspath;
     private File inputDir;
@@ -59,9 +68,11 @@ public class RetrolambdaExec {
     private boolean defaultMethods;
 
     private final Project project;
+    private final WorkerExecutor workerExecutor;
 
-    public RetrolambdaExec(Project project) {
+    public RetrolambdaExec(Project project, WorkerExecutor workerExecutor) {
         this.project = project;
+        this.workerExecutor = workerExecutor;
     }
 
     public FileCollection getRetrolambdaClasspath() {
@@ -125,91 +136,61 @@ public class RetrolambdaExec {
     }
 
     public void exec() {
-        project.javaexec(exec -> {
-            Configuration retrolambdaConfig = project.getConfigurations().getByName("retrolambdaConfig");
+        Configuration retrolambdaConfig = project.getConfigurations().getByName("retrolambdaConfig");
+
+        Properties properties = new Properties();
+        properties.setProperty("retrolambda.inputDir", inputDir.toString());
+        properties.setProperty("retrolambda.outputDir", outputDir.toString());
+        properties.setProperty("retrolambda.classpath", retrolambdaClasspath.getAsPath());
+        properties.setProperty("retrolambda.bytecodeVersion", Integer.toString(bytecodeVersion));
+        if (includedFiles != null) {
+            properties.setProperty("retrolambda.includedFiles", includedFiles.getFiles().stream()
+                    .map(File::toString)
+                    .collect(Collectors.joining(File.pathSeparator)));
+        }
+        if (defaultMethods) {
+            properties.setProperty("retrolambda.defaultMethods", "true");
+        }
+
+        List<String> forkJvmArgs = new ArrayList<>();
+        for (String arg : jvmArgs) {
+            if (arg.startsWith(PROPERTY_PREFIX) && arg.contains("=")) {
+                int separator = arg.indexOf('=');
+                properties.setProperty(arg.substring(2, separator), arg.substring(separator + 1));
+            } else {
+                forkJvmArgs.add(arg);
+            }
+        }
 
-            String path = retrolambdaClasspath.getAsPath();
+        VersionNumber retrolambdaVersion = retrolambdaVersion(retrolambdaConfig);
+        if (requireVersion(retrolambdaVersion, "2.1.0", false)) {
+            workerExecutor.submit(RetrolambdaWorker.class, config -> {
+                config.setIsolationMode(IsolationMode.PROCESS);
+                config.setDisplayName("Retrolambda " + outputDir);
+                config.classpath(retrolambdaConfig);
+                config.forkOptions(options -> options.jvmArgs(forkJvmArgs));
+                config.setParams(properties);
+            });
+            workerExecutor.await();
+            return;
+        }
 
+        project.javaexec(exec -> {
             exec.setClasspath(project.files(retrolambdaConfig));
             exec.setMain("net.orfjackal.retrolambda.Main");
-            exec.setJvmArgs(Arrays.asList(
-                    "-Dretrolambda.inputDir=" + inputDir,
-                    "-Dretrolambda.outputDir=" + outputDir,
-                    "-Dretrolambda.classpath=" + path,
-                    "-Dretrolambda.bytecodeVersion=" + bytecodeVersion
-            ));
-
-            VersionNumber retrolambdaVersion = retrolambdaVersion(retrolambdaConfig);
+            for (String name : properties.stringPropertyNames()) {
+                exec.getJvmArgs().add("-D" + name + "=" + properties.getProperty(name));
+            }
+
             boolean requiresJavaAgent = !requireVersion(retrolambdaVersion, "1.6.0", false);
             if (requiresJavaAgent) {
                 exec.getJvmArgs().add("-javaagent:" + exec.getClasspath().getAsPath());
             }
 
-            boolean supportIncludeFiles = requireVersion(retrolambdaVersion, "2.1.0", false);
-            if (supportIncludeFiles && classpathLengthGreaterThanLimit(path)) {
-                try {
-                    File classpathFile = File.createTempFile("inc-", ".path");
-                    try (BufferedWriter writer = Files.newBufferedWriter(classpathFile.toPath(), StandardCharsets.UTF_8)) {
-                        for (File item : this.retrolambdaClasspath) {
-                            writer.write(item.toString() + "\n");
-                        }
-                    }
-                    classpathFile.deleteOnExit();
-                    exec.getJvmArgs().add("-Dretrolambda.classpathFile=" + classpathFile.getAbsolutePath());
-                } catch (IOException e) {
-
-                }
-            } else {
-                exec.getJvmArgs().add("-Dretrolambda.classpath=" + path);
-            }
-
-            if (includedFiles != null) {
-                if (supportIncludeFiles && changeFileLengthGreaterThanLimit(includedFiles)) {
-                    try {
-                        File includedFile = File.createTempFile("inc-", ".list");
-                        try (BufferedWriter writer = Files.newBufferedWriter(includedFile.toPath(), StandardCharsets.UTF_8)) {
-                            for (File file : includedFiles) {
-                                writer.write(file.toString() + "\n");
-                            }
-                        }
-                        includedFile.deleteOnExit();
-                        exec.getJvmArgs().add("-Dretrolambda.includedFilesFile=" + includedFile.getAbsolutePath());
-                    } catch (IOException e) {
-
-                    }
-                } else {
-                    String includedArg = includedFiles.getFiles().stream().map(f -> f.toString())
-                            .collect(Collectors.joining(File.pathSeparator));
-                    exec.getJvmArgs().add(includedArg);
-                    project.getLogger().quiet(includedArg);
-                }
-            }
-
-            if (defaultMethods) {
-                exec.getJvmArgs().add("-Dretrolambda.defaultMethods=true");
-            }
-
-            for (String arg : jvmArgs) {
-                exec.getJvmArgs().add(arg);
-            }
+            exec.getJvmArgs().addAll(forkJvmArgs);
         });
     }
 
-    private static boolean classpathLengthGreaterThanLimit(String path) {
-        return path.length() > COMMANDLINE_LENGTH_LIMIT;
-    }
-
-    private static boolean changeFileLengthGreaterThanLimit(FileCollection includedFiles) {
-        int total = 0;
-        for (File file : includedFiles) {
-            total += file.toString().length();
-            if (total > COMMANDLINE_LENGTH_LIMIT) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     private static VersionNumber retrolambdaVersion(Configuration retrolambdaConfig) {
         retrolambdaConfig.resolve();
         Dependency retrolambdaDep = retrolambdaConfig.getDependencies().iterator().next();
@@ -228,4 +209,42 @@ public class RetrolambdaExec {
         VersionNumber targetVersionNumber = VersionNumber.parse(version);
         return retrolambdaVersion.compareTo(targetVersionNumber) >= 0;
     }
+
+    public static class RetrolambdaWorker implements Runnable {
+
+        private final Properties properties;
+
+        @Inject
+        public RetrolambdaWorker(Properties properties) {
+            this.properties = properties;
+        }
+
+        @Override
+        public void run() {
+            // retrolambda replaces the context class loader, which would otherwise leak into the next work item
+            ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+            try {
+                // retrolambda is only on the classpath of the worker, not on the one of the plugin
+                Class<?> retrolambda = Class.forName("net.orfjackal.retrolambda.Retrolambda");
+                Method run;
+                Object config;
+                try {
+                    run = retrolambda.getMethod("run", Properties.class);
+                    config = properties;
+                } catch (NoSuchMethodException e) {
+                    run = retrolambda.getMethod("run", Class.forName("net.orfjackal.retrolambda.Config"));
+                    config = Class.forName("net.orfjackal.retrolambda.SystemPropertiesConfig")
+                            .getConstructor(Properties.class)
+                            .newInstance(properties);
+                }
+                run.invoke(null, config);
+            } catch (InvocationTargetException e) {
+                throw new RuntimeException("Failed to run Retrolambda", e.getCause());
+            } catch (ReflectiveOperationException e) {
+                throw new RuntimeException("Failed to run Retrolambda", e);
+            } finally {
+                Thread.currentThread().setContextClassLoader(contextClassLoader);
+            }
+        }
+    }
 }
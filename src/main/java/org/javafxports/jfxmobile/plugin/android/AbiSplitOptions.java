@@ -0,0 +1,85 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2018, Gluon Software
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.javafxports.jfxmobile.plugin.android;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Options that split the release APK by ABI, so that each device only downloads and
+ * installs the native libraries it loads.
+ * <p>
+ * Each split APK contains the native libraries of a single ABI, together with everything
+ * else of the application. The splits are packaged in parallel, and the entries that do
+ * not depend on the ABI are compressed only once.
+ */
+public class AbiSplitOptions {
+
+    private boolean enable = false;
+    private Set<String> include = new LinkedHashSet<>();
+    private boolean universalApk = false;
+
+    /** Returns whether the release APK is split by ABI. */
+    public boolean isEnable() {
+        return enable;
+    }
+
+    public void setEnable(boolean enable) {
+        this.enable = enable;
+    }
+
+    /**
+     * Returns the ABIs that get a split APK. When empty, every ABI for which native
+     * libraries are found gets one.
+     */
+    public Set<String> getInclude() {
+        return include;
+    }
+
+    public void setInclude(Set<String> include) {
+        this.include = new LinkedHashSet<>(include);
+    }
+
+    public void include(String... abis) {
+        include.addAll(Arrays.asList(abis));
+    }
+
+    /** Returns whether an APK with the native libraries of all ABIs is also packaged. */
+    public boolean isUniversalApk() {
+        return universalApk;
+    }
+
+    public void setUniversalApk(boolean universalApk) {
+        this.universalApk = universalApk;
+    }
+}
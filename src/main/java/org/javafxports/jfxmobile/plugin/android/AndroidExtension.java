@@ -55,7 +55,10 @@ import org.gradle.api.Project;
 import org.gradle.tooling.provider.model.ToolingModelBuilderRegistry;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 public class AndroidExtension {
 
@@ -79,6 +82,8 @@ public class AndroidExtension {
     private String assetsDirectory = "src/android/assets";
     private String resDirectory = "src/android/res";
     private String nativeDirectory = "src/android/jniLibs";
+    private boolean extractNativeLibs = true;
+    private Set<String> uncompressedAssets = new LinkedHashSet<>();
 
     private File installDirectory;
     private File temporaryDirectory;
@@ -96,6 +101,8 @@ public class AndroidExtension {
 
     private SigningConfig signingConfig;
     private PackagingOptions packagingOptions;
+    private CompressionOptions compressionOptions;
+    private AbiSplitOptions abiSplits;
     private DexOptions dexOptions;
 
     private SdkHandler sdkHandler;
@@ -110,6 +117,8 @@ public class AndroidExtension {
 
         this.signingConfig = project.getExtensions().create("signingConfig", SigningConfig.class, "signing");
         this.packagingOptions = project.getExtensions().create("packagingOptions", PackagingOptions.class);
+        this.compressionOptions = project.getExtensions().create("compressionOptions", CompressionOptions.class);
+        this.abiSplits = project.getExtensions().create("abiSplits", AbiSplitOptions.class);
         this.dexOptions = project.getExtensions().create("dexOptions", DexOptions.class, extraModelInfo);
 
         try {
@@ -286,6 +295,54 @@ public class AndroidExtension {
         this.nativeDirectory = nativeDirectory;
     }
 
+    /**
+     * Returns whether the native libraries are extracted from the APK when it is installed.
+     * When they are not, they are stored uncompressed and page aligned in the APK, and are
+     * loaded from it directly. The generated manifest then sets
+     * <code>android:extractNativeLibs="false"</code>, which is only honored from API 23;
+     * a configured manifest has to set it itself.
+     */
+    public boolean isExtractNativeLibs() {
+        return extractNativeLibs;
+    }
+
+    public void setExtractNativeLibs(boolean extractNativeLibs) {
+        this.extractNativeLibs = extractNativeLibs;
+    }
+
+    /**
+     * Returns the glob patterns of the assets that are stored uncompressed, so that they can
+     * be memory mapped by the AssetManager. The patterns are relative to the assets folder,
+     * and patterns without a <code>/</code> are matched against the file name only.
+     */
+    public Set<String> getUncompressedAssets() {
+        return uncompressedAssets;
+    }
+
+    public void setUncompressedAssets(Set<String> uncompressedAssets) {
+        this.uncompressedAssets = new LinkedHashSet<>(uncompressedAssets);
+    }
+
+    public void uncompressedAssets(String... patterns) {
+        uncompressedAssets.addAll(Arrays.asList(patterns));
+    }
+
+    /**
+     * Returns the glob patterns of the paths in the APK that are stored uncompressed: the
+     * ones of the compression options, the native libraries when they are not extracted,
+     * and the uncompressed assets.
+     */
+    public Set<String> getNoCompressPatterns() {
+        Set<String> patterns = new LinkedHashSet<>(compressionOptions.getNoCompress());
+        if (!extractNativeLibs) {
+            patterns.add("lib/**/*.so");
+        }
+        for (String pattern : uncompressedAssets) {
+            patterns.add(pattern.indexOf('/') == -1 ? "assets/**/" + pattern : "assets/" + pattern);
+        }
+        return patterns;
+    }
+
     public File getInstallDirectory() {
         return installDirectory;
     }
@@ -437,6 +494,14 @@ public class AndroidExtension {
         return packagingOptions;
     }
 
+    public CompressionOptions getCompressionOptions() {
+        return compressionOptions;
+    }
+
+    public AbiSplitOptions getAbiSplits() {
+        return abiSplits;
+    }
+
     public DexOptions getDexOptions() {
         return dexOptions;
     }
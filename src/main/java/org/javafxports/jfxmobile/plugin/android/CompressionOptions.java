@@ -0,0 +1,127 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2018, Gluon Software
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.javafxports.jfxmobile.plugin.android;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Options that control how the entries added to the APK are compressed.
+ */
+public class CompressionOptions {
+
+    private int debugLevel = Deflater.BEST_SPEED;
+    private int releaseLevel = Deflater.BEST_COMPRESSION;
+
+    private Set<String> noCompress = new LinkedHashSet<>(Arrays.asList(
+            "*.png", "*.jpg", "*.jpeg", "*.gif", "*.webp",
+            "*.ogg", "*.mp3", "*.mp4", "*.m4a", "*.wav",
+            "*.so", "*.ttf", "*.otf", "*.zip"));
+
+    private boolean storeIfNotSmaller = true;
+
+    /**
+     * Returns the deflate level used for the given variant.
+     * @param variant the name of the variant, <code>Debug</code> or <code>Release</code>
+     */
+    public int getLevel(String variant) {
+        return "Debug".equals(variant) ? debugLevel : releaseLevel;
+    }
+
+    public int getDebugLevel() {
+        return debugLevel;
+    }
+
+    public void setDebugLevel(int debugLevel) {
+        this.debugLevel = checkLevel(debugLevel);
+    }
+
+    public int getReleaseLevel() {
+        return releaseLevel;
+    }
+
+    public void setReleaseLevel(int releaseLevel) {
+        this.releaseLevel = checkLevel(releaseLevel);
+    }
+
+    /**
+     * Returns the glob patterns of the paths that are always stored without compression.
+     * Patterns without a <code>/</code> are matched against the file name only.
+     */
+    public Set<String> getNoCompress() {
+        return noCompress;
+    }
+
+    public void setNoCompress(Set<String> noCompress) {
+        this.noCompress = new LinkedHashSet<>(noCompress);
+    }
+
+    public void noCompress(String... patterns) {
+        noCompress.addAll(Arrays.asList(patterns));
+    }
+
+    /**
+     * Returns the extensions of the <code>*.ext</code> patterns, which are also passed
+     * to aapt for the packaged resources.
+     */
+    public Set<String> getNoCompressExtensions() {
+        Set<String> extensions = new LinkedHashSet<>();
+        for (String pattern : noCompress) {
+            if (pattern.startsWith("*.") && pattern.indexOf('/') == -1
+                    && pattern.indexOf('*', 1) == -1 && pattern.indexOf('?') == -1) {
+                extensions.add(pattern.substring(2));
+            }
+        }
+        return extensions;
+    }
+
+    /**
+     * Returns whether an entry is stored instead when its deflated data is not smaller
+     * than its uncompressed data.
+     */
+    public boolean isStoreIfNotSmaller() {
+        return storeIfNotSmaller;
+    }
+
+    public void setStoreIfNotSmaller(boolean storeIfNotSmaller) {
+        this.storeIfNotSmaller = storeIfNotSmaller;
+    }
+
+    private static int checkLevel(int level) {
+        if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid deflate level: " + level);
+        }
+        return level;
+    }
+}
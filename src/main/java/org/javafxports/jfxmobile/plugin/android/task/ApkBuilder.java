@@ -31,7 +31,6 @@ import com.android.sdklib.internal.build.SignedJarBuilder.IZipEntryFilter;
 import com.google.common.collect.Sets;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -40,10 +39,13 @@ import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
 import java.text.DateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.regex.Pattern;
 
@@ -92,7 +94,7 @@ public final class ApkBuilder implements IArchiveBuilder {
     /**
      * Custom {@link IZipEntryFilter} to filter out everything that is not a standard java
      * resources, and also record whether the zip file contains native libraries.
-     * <p>Used in {@link SignedJarBuilder#writeZip(java.io.InputStream, IZipEntryFilter)} when
+     * <p>Used in {@link SignedJarBuilder#writeZip(File, IZipEntryFilter)} when
      * we only want the java resources from external jars.
      */
     private final class JavaAndNativeResourceFilter implements IZipEntryFilter {
@@ -211,6 +213,9 @@ public final class ApkBuilder implements IArchiveBuilder {
     private SignedJarBuilder mBuilder;
     private boolean mDebugMode = false;
     private boolean mIsSealed = false;
+    private int mThreadCount = 1;
+    private Set<String> mAbiFilter = null;
+    private NativeLibraryStripper mStripper = null;
 
     private final NullZipFilter mNullFilter = new NullZipFilter();
     private final JavaAndNativeResourceFilter mFilter;
@@ -441,9 +446,9 @@ public final class ApkBuilder implements IArchiveBuilder {
 
         SigningInfo info = getDebugKey(debugStoreOsPath, verboseStream);
         if (info != null) {
-            init(apkFile, resFile, dexFile, info.key, info.certificate, verboseStream);
+            init(apkFile, null, resFile, dexFile, info.key, info.certificate, 1, true, false, verboseStream);
         } else {
-            init(apkFile, resFile, dexFile, null /*key*/, null/*certificate*/, verboseStream);
+            init(apkFile, null, resFile, dexFile, null /*key*/, null/*certificate*/, 1, true, false, verboseStream);
         }
     }
 
@@ -470,9 +475,73 @@ public final class ApkBuilder implements IArchiveBuilder {
      */
     public ApkBuilder(File apkFile, File resFile, File dexFile, PrivateKey key,
             X509Certificate certificate, PackagingOptions packagingOptions, PrintStream verboseStream) throws ApkCreationException {
+        this(apkFile, resFile, dexFile, key, certificate, 1, true, false, packagingOptions, verboseStream);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * This creates a new builder that will create the specified output file, using the two
+     * mandatory given input files.
+     *
+     * Optional {@link PrivateKey} and {@link X509Certificate} can be provided to sign the APK,
+     * with the JAR signature scheme, the APK Signature Scheme v2, or both.
+     *
+     * An optional {@link PrintStream} can also be provided for verbose output. If null, there will
+     * be no output.
+     *
+     * @param apkFile the file to create
+     * @param resFile the file representing the packaged resource file.
+     * @param dexFile the file representing the dex file. This can be null for apk with no code.
+     * @param key the private key used to sign the package. Can be null.
+     * @param certificate the certificate used to sign the package. Can be null.
+     * @param minSdkVersion the minimum API level of the package, which decides on the digest
+     *                      algorithm of the JAR signature.
+     * @param v1SigningEnabled whether the package is signed with the JAR signature scheme.
+     * @param v2SigningEnabled whether the package is signed with the APK Signature Scheme v2.
+     * @param packagingOptions
+     * @param verboseStream the stream to which verbose output should go. If null, verbose mode
+     *                      is not enabled.
+     * @throws ApkCreationException
+     */
+    public ApkBuilder(File apkFile, File resFile, File dexFile, PrivateKey key,
+            X509Certificate certificate, int minSdkVersion, boolean v1SigningEnabled,
+            boolean v2SigningEnabled, PackagingOptions packagingOptions, PrintStream verboseStream)
+            throws ApkCreationException {
+        this(apkFile, null, resFile, dexFile, key, certificate, minSdkVersion, v1SigningEnabled,
+                v2SigningEnabled, packagingOptions, verboseStream);
+    }
+
+    /**
+     * Creates a new instance that updates the specified output file in place when possible.
+     *
+     * The index file records where each entry of the package is and which file it comes
+     * from. When it matches the existing package, only the entries that changed are written
+     * and the others are kept where they are. Otherwise the package is created from scratch.
+     *
+     * @param apkFile the file to create or update
+     * @param indexFile the index of the package, or null to always create the package from scratch.
+     * @param resFile the file representing the packaged resource file.
+     * @param dexFile the file representing the dex file. This can be null for apk with no code.
+     * @param key the private key used to sign the package. Can be null.
+     * @param certificate the certificate used to sign the package. Can be null.
+     * @param minSdkVersion the minimum API level of the package, which decides on the digest
+     *                      algorithm of the JAR signature.
+     * @param v1SigningEnabled whether the package is signed with the JAR signature scheme.
+     * @param v2SigningEnabled whether the package is signed with the APK Signature Scheme v2.
+     * @param packagingOptions
+     * @param verboseStream the stream to which verbose output should go. If null, verbose mode
+     *                      is not enabled.
+     * @throws ApkCreationException
+     */
+    public ApkBuilder(File apkFile, File indexFile, File resFile, File dexFile, PrivateKey key,
+            X509Certificate certificate, int minSdkVersion, boolean v1SigningEnabled,
+            boolean v2SigningEnabled, PackagingOptions packagingOptions, PrintStream verboseStream)
+            throws ApkCreationException {
         mFilter = new JavaAndNativeResourceFilter(packagingOptions);
 
-        init(apkFile, resFile, dexFile, key, certificate, verboseStream);
+        init(apkFile, indexFile, resFile, dexFile, key, certificate, minSdkVersion, v1SigningEnabled,
+                v2SigningEnabled, verboseStream);
     }
 
 
@@ -482,9 +551,12 @@ public final class ApkBuilder implements IArchiveBuilder {
      * @see #ApkBuilder(File, File, File, String, PackagingOptions, PrintStream)
      * @see #ApkBuilder(String, String, String, String, PackagingOptions, PrintStream)
      * @see #ApkBuilder(File, File, File, PrivateKey, X509Certificate, PackagingOptions, PrintStream)
+     * @see #ApkBuilder(File, File, File, PrivateKey, X509Certificate, int, boolean, boolean, PackagingOptions, PrintStream)
+     * @see #ApkBuilder(File, File, File, File, PrivateKey, X509Certificate, int, boolean, boolean, PackagingOptions, PrintStream)
      */
-    private void init(File apkFile, File resFile, File dexFile, PrivateKey key,
-            X509Certificate certificate, PrintStream verboseStream) throws ApkCreationException {
+    private void init(File apkFile, File indexFile, File resFile, File dexFile, PrivateKey key,
+            X509Certificate certificate, int minSdkVersion, boolean v1SigningEnabled,
+            boolean v2SigningEnabled, PrintStream verboseStream) throws ApkCreationException {
 
         try {
             checkOutputFile(mApkFile = apkFile);
@@ -496,9 +568,14 @@ public final class ApkBuilder implements IArchiveBuilder {
             }
             mVerboseStream = verboseStream;
 
-            mBuilder = new SignedJarBuilder(
-                    new FileOutputStream(mApkFile, false /* append */), key,
-                    certificate);
+            if (indexFile != null) {
+                mBuilder = new SignedJarBuilder(mApkFile, indexFile, key,
+                        certificate, minSdkVersion, v1SigningEnabled, v2SigningEnabled);
+            } else {
+                mBuilder = new SignedJarBuilder(
+                        new FileOutputStream(mApkFile, false /* append */), key,
+                        certificate, minSdkVersion, v1SigningEnabled, v2SigningEnabled);
+            }
 
             verbosePrintln("Packaging %s", mApkFile.getName());
 
@@ -540,6 +617,65 @@ public final class ApkBuilder implements IArchiveBuilder {
         mDebugMode = debugMode;
     }
 
+    /**
+     * Sets how the files that are added to the APK after this call are compressed.
+     *
+     * @param compressionPolicy the compression policy.
+     * @throws ApkCreationException if an error occurred
+     */
+    public void setCompressionPolicy(CompressionPolicy compressionPolicy) throws ApkCreationException {
+        try {
+            mBuilder.setCompressionPolicy(compressionPolicy);
+        } catch (IOException e) {
+            mBuilder.cleanUp();
+            throw new ApkCreationException(e, "Failed to set the compression policy");
+        }
+    }
+
+    /**
+     * Sets the ABIs whose native libraries are added by {@link #addNativeLibraries(File)}.
+     *
+     * @param abis the names of the ABI folders, or null to add the libraries of every ABI.
+     */
+    public void setAbiFilter(Collection<String> abis) {
+        mAbiFilter = abis != null ? new HashSet<String>(abis) : null;
+    }
+
+    /**
+     * Sets the stripper that removes the debug information from the native libraries that
+     * are added to the APK. The libraries are not stripped in debug mode, so that the
+     * native code can still be debugged.
+     *
+     * @param stripper the stripper, or null to add the libraries as they are.
+     * @see #setDebugMode(boolean)
+     */
+    public void setNativeLibraryStripper(NativeLibraryStripper stripper) {
+        mStripper = stripper;
+    }
+
+    /**
+     * Sets the cache from which the compressed files and the digests of the entries are
+     * reused, for the files and archives that are added to the APK after this call.
+     *
+     * @param cache the cache, or null.
+     */
+    public void setCache(PackagingCache cache) {
+        mBuilder.setCache(cache);
+    }
+
+    /**
+     * Sets the number of threads used to compress the files that are added to the APK.
+     *
+     * The files are still written in the order in which they are added, so the APK is the
+     * same for any number of threads.
+     *
+     * @param threads the number of threads.
+     */
+    public void setThreadCount(int threads) {
+        mThreadCount = threads;
+        mBuilder.setThreadCount(threads);
+    }
+
     /**
      * Adds a file to the APK at a given path
      * @param file the file to add
@@ -589,9 +725,7 @@ public final class ApkBuilder implements IArchiveBuilder {
             mNullFilter.reset(zipFile);
 
             // ask the builder to add the content of the file.
-            FileInputStream fis = new FileInputStream(zipFile);
-            mBuilder.writeZip(fis, mNullFilter);
-            fis.close();
+            mBuilder.writeZip(zipFile, mNullFilter);
         } catch (DuplicateFileException e) {
             mBuilder.cleanUp();
             throw e;
@@ -617,6 +751,112 @@ public final class ApkBuilder implements IArchiveBuilder {
             throw new SealedApkException("APK is already sealed");
         }
 
+        return addResourcesFromJar(jarFile, mFilter);
+    }
+
+    /**
+     * Adds the resources from several jar files, in order.
+     *
+     * The jars are scanned with {@link #getJarResources(List, File, int)}, with the number of
+     * threads given to {@link #setThreadCount(int)}.
+     *
+     * @param jarFiles the jar files.
+     * @param indexFile the index of the resources of the jars, which is updated.
+     * @return a {@link JarStatus} object for each jar file, indicating if native libraries
+     *         where found in the jar file.
+     * @throws ApkCreationException if an error occurred
+     * @throws SealedApkException if the APK is already sealed.
+     * @throws DuplicateFileException if a file conflicts with another already added to the APK
+     *                                   at the same location inside the APK archive.
+     */
+    public List<JarStatus> addResourcesFromJars(List<File> jarFiles, File indexFile)
+            throws ApkCreationException, SealedApkException, DuplicateFileException {
+        if (mIsSealed) {
+            throw new SealedApkException("APK is already sealed");
+        }
+
+        Map<File, List<String>> resources;
+        try {
+            resources = getJarResources(jarFiles, indexFile, mThreadCount);
+        } catch (ApkCreationException e) {
+            mBuilder.cleanUp();
+            throw e;
+        }
+        return addResourcesFromJars(resources);
+    }
+
+    /**
+     * Returns the java resources of several jar files.
+     *
+     * The index file records which entries of each jar are java resources. The jars that did
+     * not change since the index was written are not scanned again, and those without any
+     * resources are not opened at all. The other jars are scanned in parallel. When several
+     * APKs are packaged from the same jars, the jars only need to be scanned once, and the
+     * result given to {@link #addResourcesFromJars(Map)} of each of them.
+     *
+     * @param jarFiles the jar files.
+     * @param indexFile the index of the resources of the jars, which is updated.
+     * @param threads the number of threads on which the jars are scanned.
+     * @return the names of the java resources, by jar file, in the order of the jar files.
+     * @throws ApkCreationException if a jar file could not be scanned
+     */
+    public static Map<File, List<String>> getJarResources(List<File> jarFiles, File indexFile, int threads)
+            throws ApkCreationException {
+        JarResourceIndex index = new JarResourceIndex(indexFile);
+        Map<File, List<String>> resources;
+        try {
+            resources = index.getResources(jarFiles, ApkBuilder::isJavaResource, threads);
+        } catch (Exception e) {
+            throw new ApkCreationException(e, "Failed to scan the jar files");
+        }
+
+        try {
+            index.write(jarFiles);
+        } catch (IOException e) {
+            // the jars are only scanned again on the next build
+        }
+        return resources;
+    }
+
+    /**
+     * Adds the resources from several jar files, in order.
+     *
+     * @param resources the names of the java resources, by jar file, as returned by
+     *                  {@link #getJarResources(List, File, int)}.
+     * @return a {@link JarStatus} object for each jar file, indicating if native libraries
+     *         where found in the jar file.
+     * @throws ApkCreationException if an error occurred
+     * @throws SealedApkException if the APK is already sealed.
+     * @throws DuplicateFileException if a file conflicts with another already added to the APK
+     *                                   at the same location inside the APK archive.
+     */
+    public List<JarStatus> addResourcesFromJars(Map<File, List<String>> resources)
+            throws ApkCreationException, SealedApkException, DuplicateFileException {
+        if (mIsSealed) {
+            throw new SealedApkException("APK is already sealed");
+        }
+
+        List<JarStatus> statuses = new ArrayList<JarStatus>();
+        for (Map.Entry<File, List<String>> jar : resources.entrySet()) {
+            File jarFile = jar.getKey();
+            Set<String> jarResources = new HashSet<String>(jar.getValue());
+            if (jarResources.isEmpty()) {
+                verbosePrintln("%s: no resources", jarFile);
+                statuses.add(new JarStatusImpl(Collections.<String>emptyList(), false));
+                continue;
+            }
+
+            // the packaging options and the duplicates still go through the filter, in order
+            JarStatus status = addResourcesFromJar(jarFile,
+                    archivePath -> jarResources.contains(archivePath) && mFilter.checkEntry(archivePath));
+            statuses.add(new JarStatusImpl(new ArrayList<String>(status.getNativeLibs()),
+                    status.hasNativeLibsConflicts()));
+        }
+        return statuses;
+    }
+
+    private JarStatus addResourcesFromJar(File jarFile, IZipEntryFilter filter)
+            throws ApkCreationException, DuplicateFileException {
         try {
             verbosePrintln("%s:", jarFile);
 
@@ -625,9 +865,7 @@ public final class ApkBuilder implements IArchiveBuilder {
 
             // ask the builder to add the content of the file, filtered to only let through
             // the java resources.
-            FileInputStream fis = new FileInputStream(jarFile);
-            mBuilder.writeZip(fis, mFilter);
-            fis.close();
+            mBuilder.writeZip(jarFile, filter);
 
             // check if native libraries were found in the external library. This should
             // constitutes an error or warning depending on if they are in lib/
@@ -727,7 +965,8 @@ public final class ApkBuilder implements IArchiveBuilder {
 
         if (abiList != null) {
             for (File abi : abiList) {
-                if (abi.isDirectory()) { // ignore files
+                // ignore files, and the ABIs that are filtered out
+                if (abi.isDirectory() && (mAbiFilter == null || mAbiFilter.contains(abi.getName()))) {
 
                     File[] libs = abi.listFiles();
                     if (libs != null) {
@@ -745,7 +984,7 @@ public final class ApkBuilder implements IArchiveBuilder {
                                     abi.getName() + "/" + lib.getName();
 
                                 try {
-                                    doAddFile(lib, path);
+                                    doAddNativeLibrary(lib, path);
                                 } catch (IOException e) {
                                     mBuilder.cleanUp();
                                     throw new ApkCreationException(e, "Failed to add %s", lib);
@@ -766,7 +1005,7 @@ public final class ApkBuilder implements IArchiveBuilder {
 
         for (FileEntry entry : entries) {
             try {
-                doAddFile(entry.mFile, entry.mPath);
+                doAddNativeLibrary(entry.mFile, entry.mPath);
             } catch (IOException e) {
                 mBuilder.cleanUp();
                 throw new ApkCreationException(e, "Failed to add %s", entry.mFile);
@@ -867,7 +1106,28 @@ public final class ApkBuilder implements IArchiveBuilder {
 
     private void doAddFile(File file, String archivePath) throws DuplicateFileException,
             IOException {
-        verbosePrintln("%1$s => %2$s", file, archivePath);
+        doAddFile(file, file, archivePath);
+    }
+
+    /**
+     * Adds a native library, stripped of its debug information unless in debug mode.
+     */
+    private void doAddNativeLibrary(File file, String archivePath) throws DuplicateFileException,
+            IOException {
+        File content = file;
+        if (mStripper != null && !mDebugMode && PATTERN_NATIVELIB_EXT.matcher(file.getName()).matches()) {
+            content = mStripper.strip(file);
+        }
+        doAddFile(file, content, archivePath);
+    }
+
+    /**
+     * @param file the file that is added, as reported in conflicts
+     * @param content the file whose content is written, which may be a processed copy of file
+     */
+    private void doAddFile(File file, File content, String archivePath) throws DuplicateFileException,
+            IOException {
+        verbosePrintln("%1$s => %2$s", content, archivePath);
 
         File duplicate = checkFileForDuplicate(archivePath);
         if (duplicate != null) {
@@ -875,7 +1135,7 @@ public final class ApkBuilder implements IArchiveBuilder {
         }
 
         mAddedFiles.put(archivePath, file);
-        mBuilder.writeFile(file, archivePath);
+        mBuilder.writeFile(content, archivePath);
     }
 
     /**
@@ -1000,6 +1260,34 @@ public final class ApkBuilder implements IArchiveBuilder {
         }
     }
 
+    /**
+     * Returns whether an entry of a jar file is a standard java resource, regardless of the
+     * packaging options and of the files already added to the APK.
+     * @param archivePath the path of the entry in the jar file.
+     */
+    private static boolean isJavaResource(String archivePath) {
+        try {
+            if (archivePath.isEmpty() || archivePath.endsWith("/")
+                    || !SignedJarBuilder.checkEntry(archivePath, null)) {
+                return false;
+            }
+        } catch (IZipEntryFilter.ZipAbortException e) {
+            // only a filter aborts
+            return false;
+        }
+
+        String[] segments = archivePath.split("/");
+        if (segments.length == 0) {
+            return false;
+        }
+        for (int i = 0 ; i < segments.length - 1; i++) {
+            if (!checkFolderForPackaging(segments[i])) {
+                return false;
+            }
+        }
+        return checkFileForPackaging(segments[segments.length - 1]);
+    }
+
     /**
      * Checks whether a folder and its content is valid for packaging into the .apk as
      * standard Java resource.
@@ -0,0 +1,267 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2018, Gluon Software
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.javafxports.jfxmobile.plugin.android.task;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the entries of an APK with the fingerprint of their source, so that the next
+ * build can keep the entries whose source did not change in place and only write the
+ * others.
+ * <p>
+ * The index is only valid for the APK file that was written with it, which is checked
+ * with the length and the modification time of the file.
+ */
+final class ApkIndex {
+
+    private static final int VERSION = 1;
+
+    /** An entry of the APK, with the location of its local header and data. */
+    static final class Entry {
+        final String name;
+        final String fingerprint;
+        final int method;
+        final long dosTime;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final long localHeaderOffset;
+        final long recordLength;
+        final byte[] digest;
+
+        Entry(String name, String fingerprint, int method, long dosTime, long crc, long compressedSize,
+                long size, long localHeaderOffset, long recordLength, byte[] digest) {
+            this.name = name;
+            this.fingerprint = fingerprint;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+            this.recordLength = recordLength;
+            this.digest = digest;
+        }
+    }
+
+    private final String configuration;
+    private final long apkLength;
+    private final long apkLastModified;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private final List<long[]> holes;
+    private final List<byte[]> chunkDigests;
+
+    /**
+     * @param configuration the signing configuration the APK was written with
+     * @param apk the APK file, once it is closed
+     * @param entries the entries of the APK
+     * @param holes the offset and length of the unused ranges between the entries
+     * @param chunkDigests the v2 digests of the 1 MB chunks of the entries, or an empty list
+     */
+    ApkIndex(String configuration, File apk, Collection<Entry> entries, List<long[]> holes,
+            List<byte[]> chunkDigests) {
+        this(configuration, apk.length(), apk.lastModified(), entries, holes, chunkDigests);
+    }
+
+    private ApkIndex(String configuration, long apkLength, long apkLastModified,
+            Collection<Entry> entries, List<long[]> holes, List<byte[]> chunkDigests) {
+        this.configuration = configuration;
+        this.apkLength = apkLength;
+        this.apkLastModified = apkLastModified;
+        for (Entry entry : entries) {
+            this.entries.put(entry.name, entry);
+        }
+        this.holes = holes;
+        this.chunkDigests = chunkDigests;
+    }
+
+    /**
+     * Returns whether the index describes the given APK, written with the given
+     * configuration.
+     */
+    boolean isValidFor(File apk, String configuration) {
+        return this.configuration.equals(configuration)
+                && apk.length() == apkLength && apk.lastModified() == apkLastModified;
+    }
+
+    /** Returns the entry with the given name, or <code>null</code>. */
+    Entry getEntry(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Returns the offset after the last entry that may be kept. The entries that are
+     * written again every time, such as the signature files, are not taken into account.
+     */
+    long getAppendOffset() {
+        long offset = 0;
+        for (Entry entry : entries.values()) {
+            if (!entry.fingerprint.isEmpty()) {
+                offset = Math.max(offset, entry.localHeaderOffset + entry.recordLength);
+            }
+        }
+        return offset;
+    }
+
+    List<long[]> getHoles() {
+        return holes;
+    }
+
+    /** Returns the number of bytes of the APK that are not used by any entry. */
+    long getWastedBytes() {
+        long wasted = 0;
+        for (long[] hole : holes) {
+            wasted += hole[1];
+        }
+        return wasted;
+    }
+
+    long getApkLength() {
+        return apkLength;
+    }
+
+    List<byte[]> getChunkDigests() {
+        return chunkDigests;
+    }
+
+    /**
+     * Reads an index.
+     * @return the index, or <code>null</code> if the file does not exist or cannot be read
+     */
+    static ApkIndex read(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+
+            String configuration = in.readUTF();
+            long apkLength = in.readLong();
+            long apkLastModified = in.readLong();
+
+            int entryCount = in.readInt();
+            List<Entry> entries = new ArrayList<>(entryCount);
+            for (int i = 0; i < entryCount; i++) {
+                String name = in.readUTF();
+                String fingerprint = in.readUTF();
+                int method = in.readUnsignedShort();
+                long dosTime = in.readLong();
+                long crc = in.readLong();
+                long compressedSize = in.readLong();
+                long size = in.readLong();
+                long localHeaderOffset = in.readLong();
+                long recordLength = in.readLong();
+                byte[] digest = null;
+                int digestLength = in.readUnsignedByte();
+                if (digestLength > 0) {
+                    digest = new byte[digestLength];
+                    in.readFully(digest);
+                }
+                entries.add(new Entry(name, fingerprint, method, dosTime, crc, compressedSize, size,
+                        localHeaderOffset, recordLength, digest));
+            }
+
+            int holeCount = in.readInt();
+            List<long[]> holes = new ArrayList<>(holeCount);
+            for (int i = 0; i < holeCount; i++) {
+                holes.add(new long[] { in.readLong(), in.readLong() });
+            }
+
+            int chunkCount = in.readInt();
+            List<byte[]> chunkDigests = new ArrayList<>(chunkCount);
+            for (int i = 0; i < chunkCount; i++) {
+                byte[] digest = new byte[in.readUnsignedByte()];
+                in.readFully(digest);
+                chunkDigests.add(digest);
+            }
+
+            return new ApkIndex(configuration, apkLength, apkLastModified, entries, holes, chunkDigests);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    void write(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(VERSION);
+            out.writeUTF(configuration);
+            out.writeLong(apkLength);
+            out.writeLong(apkLastModified);
+
+            out.writeInt(entries.size());
+            for (Entry entry : entries.values()) {
+                out.writeUTF(entry.name);
+                out.writeUTF(entry.fingerprint);
+                out.writeShort(entry.method);
+                out.writeLong(entry.dosTime);
+                out.writeLong(entry.crc);
+                out.writeLong(entry.compressedSize);
+                out.writeLong(entry.size);
+                out.writeLong(entry.localHeaderOffset);
+                out.writeLong(entry.recordLength);
+                if (entry.digest != null) {
+                    out.writeByte(entry.digest.length);
+                    out.write(entry.digest);
+                } else {
+                    out.writeByte(0);
+                }
+            }
+
+            out.writeInt(holes.size());
+            for (long[] hole : holes) {
+                out.writeLong(hole[0]);
+                out.writeLong(hole[1]);
+            }
+
+            out.writeInt(chunkDigests.size());
+            for (byte[] digest : chunkDigests) {
+                out.writeByte(digest.length);
+                out.write(digest);
+            }
+        }
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2018, Gluon Software
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.javafxports.jfxmobile.plugin.android.task;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Signs an APK with the APK Signature Scheme v2.
+ * <p>
+ * The contents of the zip entries are digested in chunks of 1 MB while the APK is
+ * written, on an executor when one is set. The central directory and the end of
+ * central directory record are digested when the archive is closed, and the APK
+ * Signing Block is then inserted before the central directory.
+ * <p>
+ * When an APK is updated in place, the entries are digested from the file instead,
+ * and the digests of the chunks that were not modified are reused from the previous
+ * build.
+ */
+final class ApkSignatureSchemeV2 {
+
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    private static final int SIGNATURE_SCHEME_V2_BLOCK_ID = 0x7109871a;
+    private static final byte[] APK_SIGNING_BLOCK_MAGIC = "APK Sig Block 42".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA256 = 0x0103;
+    private static final int SIGNATURE_ECDSA_WITH_SHA256 = 0x0201;
+    private static final int SIGNATURE_DSA_WITH_SHA256 = 0x0301;
+
+    private final PrivateKey mKey;
+    private final X509Certificate mCertificate;
+    private final int mSignatureAlgorithmId;
+    private final String mSignatureAlgorithm;
+
+    private final List<Future<byte[]>> mChunkDigests = new ArrayList<>();
+    private int mCompletedDigests = 0;
+    private int mEntryChunkCount = 0;
+    private List<byte[]> mPreviousChunkDigests = Collections.emptyList();
+    private ExecutorService mExecutor;
+    private int mMaxPending;
+
+    private byte[] mChunk = new byte[CHUNK_SIZE];
+    private int mChunkLength = 0;
+    private boolean mEntriesDigested = false;
+
+    /**
+     * @param key the private key used to sign the APK
+     * @param certificate the certificate of the key
+     * @throws NoSuchAlgorithmException if the key is not a RSA, EC or DSA key
+     */
+    ApkSignatureSchemeV2(PrivateKey key, X509Certificate certificate) throws NoSuchAlgorithmException {
+        mKey = key;
+        mCertificate = certificate;
+
+        switch (key.getAlgorithm()) {
+            case "RSA":
+                mSignatureAlgorithmId = SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA256;
+                mSignatureAlgorithm = "SHA256withRSA";
+                break;
+            case "EC":
+                mSignatureAlgorithmId = SIGNATURE_ECDSA_WITH_SHA256;
+                mSignatureAlgorithm = "SHA256withECDSA";
+                break;
+            case "DSA":
+                mSignatureAlgorithmId = SIGNATURE_DSA_WITH_SHA256;
+                mSignatureAlgorithm = "SHA256withDSA";
+                break;
+            default:
+                throw new NoSuchAlgorithmException("Unsupported key algorithm for APK Signature Scheme v2: "
+                        + key.getAlgorithm());
+        }
+    }
+
+    /**
+     * Sets the executor on which the chunks are digested from now on.
+     * @param executor the executor
+     * @param maxPending the number of chunks that may wait to be digested, each holding 1 MB
+     */
+    void setExecutor(ExecutorService executor, int maxPending) {
+        mExecutor = executor;
+        mMaxPending = maxPending;
+    }
+
+    /**
+     * Sets the digests of the chunks of the zip entries of the APK that is updated, as
+     * returned by {@link #getEntryChunkDigests()} when it was written.
+     */
+    void setPreviousChunkDigests(List<byte[]> chunkDigests) {
+        mPreviousChunkDigests = chunkDigests;
+    }
+
+    /**
+     * Returns the digests of the chunks of the zip entries, once the APK Signing Block
+     * was created.
+     */
+    List<byte[]> getEntryChunkDigests() throws IOException {
+        List<byte[]> digests = new ArrayList<>(mEntryChunkCount);
+        for (int i = 0; i < mEntryChunkCount; i++) {
+            digests.add(get(mChunkDigests.get(i)));
+        }
+        return digests;
+    }
+
+    /**
+     * Digests the zip entries of an APK that is updated in place.
+     * @param channel the channel of the APK
+     * @param size the length of the zip entries, from the start of the APK
+     * @param unchangedLength the length from the start of the APK that is the same as
+     *                        when the previous chunk digests were computed
+     */
+    void digestEntries(FileChannel channel, long size, long unchangedLength) throws IOException {
+        for (long offset = 0; offset < size; offset += CHUNK_SIZE) {
+            int index = (int) (offset / CHUNK_SIZE);
+            if (offset + CHUNK_SIZE <= unchangedLength && index < mPreviousChunkDigests.size()) {
+                mChunkDigests.add(CompletableFuture.completedFuture(mPreviousChunkDigests.get(index)));
+                continue;
+            }
+
+            ByteBuffer chunk = ByteBuffer.wrap(mChunk, 0, (int) Math.min(CHUNK_SIZE, size - offset));
+            while (chunk.hasRemaining()) {
+                if (channel.read(chunk, offset + chunk.position()) == -1) {
+                    throw new IOException("Unexpected end of the APK at offset " + (offset + chunk.position()));
+                }
+            }
+            mChunkLength = chunk.position();
+            submitChunk();
+        }
+    }
+
+    /**
+     * Returns a stream that writes to the given stream and digests the data, which must be
+     * the contents of the zip entries, from the start of the APK.
+     */
+    OutputStream digestEntries(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                if (!mEntriesDigested) {
+                    update(b, off, len);
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates the APK Signing Block, once all the zip entries were written.
+     * @param centralDirectory the central directory of the APK
+     * @param endOfCentralDirectory the end of central directory record of the APK, with the
+     *                              offset of the central directory before the APK Signing Block
+     *                              is inserted
+     * @return the APK Signing Block to write before the central directory
+     */
+    byte[] createSigningBlock(byte[] centralDirectory, byte[] endOfCentralDirectory) throws IOException {
+        // the chunks of a section never span the next section
+        submitChunk();
+        mEntriesDigested = true;
+        mEntryChunkCount = mChunkDigests.size();
+        for (int offset = 0; offset < centralDirectory.length; offset += CHUNK_SIZE) {
+            mChunkDigests.add(digestChunk(centralDirectory, offset,
+                    Math.min(CHUNK_SIZE, centralDirectory.length - offset)));
+        }
+        mChunkDigests.add(digestChunk(endOfCentralDirectory, 0, endOfCentralDirectory.length));
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((byte) 0x5a);
+            digest.update(uint32(mChunkDigests.size()));
+            for (Future<byte[]> chunkDigest : mChunkDigests) {
+                digest.update(get(chunkDigest));
+            }
+            return createSigningBlock(digest.digest());
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to sign the APK with the APK Signature Scheme v2", e);
+        }
+    }
+
+    /**
+     * Digests data that is written to the APK without going through the stream returned
+     * by {@link #digestEntries(OutputStream)}, after the data that went through it so far.
+     */
+    void digestEntryData(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            int count = Math.min(data.remaining(), CHUNK_SIZE - mChunkLength);
+            data.get(mChunk, mChunkLength, count);
+            mChunkLength += count;
+
+            if (mChunkLength == CHUNK_SIZE) {
+                submitChunk();
+            }
+        }
+    }
+
+    private void update(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int count = Math.min(len, CHUNK_SIZE - mChunkLength);
+            System.arraycopy(b, off, mChunk, mChunkLength, count);
+            mChunkLength += count;
+            off += count;
+            len -= count;
+
+            if (mChunkLength == CHUNK_SIZE) {
+                submitChunk();
+            }
+        }
+    }
+
+    private void submitChunk() throws IOException {
+        if (mChunkLength == 0) {
+            return;
+        }
+
+        mChunkDigests.add(digestChunk(mChunk, 0, mChunkLength));
+        mChunk = new byte[CHUNK_SIZE];
+        mChunkLength = 0;
+
+        // keep a bounded number of chunks in memory
+        while (mChunkDigests.size() - mCompletedDigests > mMaxPending) {
+            get(mChunkDigests.get(mCompletedDigests++));
+        }
+    }
+
+    private Future<byte[]> digestChunk(byte[] data, int offset, int length) {
+        FutureTask<byte[]> task = new FutureTask<>(() -> {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((byte) 0xa5);
+            digest.update(uint32(length));
+            digest.update(data, offset, length);
+            return digest.digest();
+        });
+        if (mExecutor != null) {
+            mExecutor.execute(task);
+        } else {
+            task.run();
+        }
+        return task;
+    }
+
+    private static byte[] get(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while digesting the APK");
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to digest the APK", e.getCause());
+        }
+    }
+
+    private byte[] createSigningBlock(byte[] contentDigest) throws GeneralSecurityException {
+        ByteArrayOutputStream digests = new ByteArrayOutputStream();
+        writeIdAndValue(digests, mSignatureAlgorithmId, contentDigest);
+
+        ByteArrayOutputStream certificates = new ByteArrayOutputStream();
+        writeLengthPrefixed(certificates, mCertificate.getEncoded());
+
+        ByteArrayOutputStream signedData = new ByteArrayOutputStream();
+        writeLengthPrefixed(signedData, digests.toByteArray());
+        writeLengthPrefixed(signedData, certificates.toByteArray());
+        writeLengthPrefixed(signedData, new byte[0]); // additional attributes
+
+        Signature signature = Signature.getInstance(mSignatureAlgorithm);
+        signature.initSign(mKey);
+        signature.update(signedData.toByteArray());
+        ByteArrayOutputStream signatures = new ByteArrayOutputStream();
+        writeIdAndValue(signatures, mSignatureAlgorithmId, signature.sign());
+
+        ByteArrayOutputStream signer = new ByteArrayOutputStream();
+        writeLengthPrefixed(signer, signedData.toByteArray());
+        writeLengthPrefixed(signer, signatures.toByteArray());
+        writeLengthPrefixed(signer, mCertificate.getPublicKey().getEncoded());
+
+        ByteArrayOutputStream signers = new ByteArrayOutputStream();
+        writeLengthPrefixed(signers, signer.toByteArray());
+
+        ByteArrayOutputStream schemeBlock = new ByteArrayOutputStream();
+        writeLengthPrefixed(schemeBlock, signers.toByteArray());
+        byte[] value = schemeBlock.toByteArray();
+
+        // size, ID-value pairs, size, magic; the sizes do not count the first size field
+        long blockSize = 8 + 4 + value.length + 8 + APK_SIGNING_BLOCK_MAGIC.length;
+        ByteBuffer block = ByteBuffer.allocate((int) (8 + blockSize)).order(ByteOrder.LITTLE_ENDIAN);
+        block.putLong(blockSize);
+        block.putLong(4 + value.length);
+        block.putInt(SIGNATURE_SCHEME_V2_BLOCK_ID);
+        block.put(value);
+        block.putLong(blockSize);
+        block.put(APK_SIGNING_BLOCK_MAGIC);
+        return block.array();
+    }
+
+    private static void writeIdAndValue(ByteArrayOutputStream out, int id, byte[] value) {
+        out.write(uint32(4 + 4 + value.length), 0, 4);
+        out.write(uint32(id), 0, 4);
+        writeLengthPrefixed(out, value);
+    }
+
+    private static void writeLengthPrefixed(ByteArrayOutputStream out, byte[] value) {
+        out.write(uint32(value.length), 0, 4);
+        out.write(value, 0, value.length);
+    }
+
+    private static byte[] uint32(int value) {
+        return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array();
+    }
+}
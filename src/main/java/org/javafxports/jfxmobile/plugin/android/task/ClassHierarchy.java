@@ -0,0 +1,166 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2018, Gluon Software
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.javafxports.jfxmobile.plugin.android.task;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The type hierarchy of the classes in a directory, read from their headers.
+ * Used by the incremental tasks to find the classes whose output depends on
+ * the classes that changed.
+ */
+class ClassHierarchy {
+
+    private final Map<String, ClassHeader> headers = new HashMap<>();
+    private final Map<String, Set<String>> subtypes = new HashMap<>();
+
+    static ClassHierarchy read(Path dir) {
+        ClassHierarchy hierarchy = new ClassHierarchy();
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.filter(path -> isClass(path.toFile())).collect(Collectors.toList())) {
+                ClassHeader header = new ClassHeader(file.toFile(), new ClassReader(Files.readAllBytes(file)));
+                hierarchy.headers.put(header.name, header);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        for (ClassHeader header : hierarchy.headers.values()) {
+            for (String supertype : header.supertypes) {
+                hierarchy.subtypes.computeIfAbsent(supertype, name -> new HashSet<>()).add(header.name);
+            }
+            // only keep the references to interfaces of the directory, other types are read from the classpath
+            header.referencedInterfaces.removeIf(name -> {
+                ClassHeader referenced = hierarchy.headers.get(name);
+                return referenced == null || !referenced.isInterface;
+            });
+        }
+        return hierarchy;
+    }
+
+    /** Returns the class file of the given class, or <code>null</code> if it is not in the directory. */
+    File getFile(String name) {
+        ClassHeader header = headers.get(name);
+        return header == null ? null : header.file;
+    }
+
+    /**
+     * Returns the given classes together with all their direct and indirect
+     * subtypes in the directory.
+     */
+    Set<String> withSubtypes(Collection<String> names) {
+        Set<String> result = new HashSet<>();
+        Deque<String> pending = new ArrayDeque<>(names);
+        while (!pending.isEmpty()) {
+            String name = pending.remove();
+            if (result.add(name)) {
+                pending.addAll(subtypes.getOrDefault(name, Collections.emptySet()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the given classes of the directory together with the classes of
+     * the directory that are needed to analyze them: their supertypes and the
+     * interfaces that they reference, recursively.
+     */
+    Set<String> withDependencies(Collection<String> names) {
+        Set<String> result = new HashSet<>();
+        Deque<String> pending = new ArrayDeque<>(names);
+        while (!pending.isEmpty()) {
+            ClassHeader header = headers.get(pending.remove());
+            if (header != null && result.add(header.name)) {
+                pending.addAll(header.supertypes);
+                pending.addAll(header.referencedInterfaces);
+            }
+        }
+        return result;
+    }
+
+    static boolean isClass(File file) {
+        return file.getName().endsWith(".class");
+    }
+
+    /** Returns the internal name of the class that is stored in the given file of the directory. */
+    static String className(Path dir, File classFile) {
+        String relativePath = dir.relativize(classFile.toPath()).toString().replace(File.separatorChar, '/');
+        return relativePath.substring(0, relativePath.length() - ".class".length());
+    }
+
+    private static final class ClassHeader {
+
+        private final File file;
+        private final String name;
+        private final boolean isInterface;
+        private final List<String> supertypes = new ArrayList<>();
+        private final Set<String> referencedInterfaces = new HashSet<>();
+
+        private ClassHeader(File file, ClassReader reader) {
+            this.file = file;
+            this.name = reader.getClassName();
+            this.isInterface = (reader.getAccess() & Opcodes.ACC_INTERFACE) != 0;
+            if (reader.getSuperName() != null) {
+                supertypes.add(reader.getSuperName());
+            }
+            Collections.addAll(supertypes, reader.getInterfaces());
+
+            // every CONSTANT_Class entry of the constant pool
+            char[] buffer = new char[reader.getMaxStringLength()];
+            for (int i = 1; i < reader.getItemCount(); i++) {
+                int offset = reader.getItem(i);
+                if (offset > 0 && reader.b[offset - 1] == 7) {
+                    referencedInterfaces.add(reader.readUTF8(offset, buffer));
+                }
+            }
+        }
+    }
+}
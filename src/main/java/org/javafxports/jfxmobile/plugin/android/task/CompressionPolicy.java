@@ -0,0 +1,131 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2018, Gluon Software
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.javafxports.jfxmobile.plugin.android.task;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+
+/**
+ * Decides how each entry that is added to an APK is compressed: the deflate level,
+ * the paths that are always stored, and whether an entry that does not shrink is
+ * stored instead.
+ */
+public class CompressionPolicy {
+
+    /** Deflates every entry with the best compression, as aapt and zip -9 do. */
+    public static final CompressionPolicy DEFAULT =
+            new CompressionPolicy(Deflater.BEST_COMPRESSION, Collections.<String>emptyList(), false);
+
+    private final int level;
+    private final List<Pattern> storedNames = new ArrayList<>();
+    private final List<Pattern> storedPaths = new ArrayList<>();
+    private final boolean storeIfNotSmaller;
+
+    /**
+     * @param level the deflate level
+     * @param storedPatterns glob patterns of the paths that are never compressed. Patterns
+     *                       without a <code>/</code> are matched against the file name only.
+     * @param storeIfNotSmaller whether entries are stored when deflating does not shrink them
+     */
+    public CompressionPolicy(int level, Collection<String> storedPatterns, boolean storeIfNotSmaller) {
+        this.level = level;
+        for (String storedPattern : storedPatterns) {
+            if (storedPattern.indexOf('/') == -1) {
+                storedNames.add(toPattern(storedPattern));
+            } else {
+                storedPaths.add(toPattern(storedPattern));
+            }
+        }
+        this.storeIfNotSmaller = storeIfNotSmaller;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public boolean isStoreIfNotSmaller() {
+        return storeIfNotSmaller;
+    }
+
+    /**
+     * Returns whether the entry with the given path is always stored.
+     * @param archivePath the path of the entry in the archive
+     */
+    public boolean isStored(String archivePath) {
+        String fileName = archivePath.substring(archivePath.lastIndexOf('/') + 1);
+        for (Pattern pattern : storedNames) {
+            if (pattern.matcher(fileName).matches()) {
+                return true;
+            }
+        }
+        for (Pattern pattern : storedPaths) {
+            if (pattern.matcher(archivePath).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Converts a glob pattern to a regular expression: <code>**</code> matches any
+     * number of folders, <code>*</code> and <code>?</code> do not match a <code>/</code>.
+     */
+    private static Pattern toPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*') {
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    i++;
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '/') {
+                        // "**/" also matches no folder at all
+                        i++;
+                        regex.append("(?:.*/)?");
+                    } else {
+                        regex.append(".*");
+                    }
+                } else {
+                    regex.append("[^/]*");
+                }
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+}
@@ -57,8 +57,13 @@ import com.google.common.hash.Hashing;
 import com.google.common.hash.HashingInputStream;
 import org.gradle.api.DefaultTask;
 import org.gradle.api.artifacts.Configuration;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.tasks.Classpath;
 import org.gradle.api.tasks.Input;
 import org.gradle.api.tasks.InputDirectory;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.Optional;
 import org.gradle.api.tasks.OutputDirectory;
 import org.gradle.api.tasks.TaskAction;
 import org.gradle.api.tasks.incremental.IncrementalTaskInputs;
@@ -72,16 +77,24 @@ import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 public class DesugarTask extends DefaultTask {
 
@@ -143,6 +156,7 @@ public class DesugarTask extends DefaultTask {
     private static final String DESUGAR_JAR = "desugar_deploy.jar";
 
     private File inputDir;
+    private FileCollection inputJars;
     private File tmpDir;
     private File outputDir;
     private Configuration androidRuntime;
@@ -168,14 +182,174 @@ public class DesugarTask extends DefaultTask {
 
         if (Files.notExists(inputDir.toPath())) {
             PathUtils.deleteIfExists(outputDir.toPath());
+            return;
+        }
+
+        Set<File> changed = Sets.newLinkedHashSet();
+        Set<File> removed = Sets.newLinkedHashSet();
+        AtomicBoolean incremental = new AtomicBoolean(inputs.isIncremental());
+        if (incremental.get()) {
+            // a change of the classpath or bootclasspath affects every input class
+            inputs.outOfDate(details -> {
+                if (details.getFile().toPath().startsWith(inputDir.toPath())) {
+                    changed.add(details.getFile());
+                } else {
+                    incremental.set(false);
+                }
+            });
+            inputs.removed(details -> {
+                if (details.getFile().toPath().startsWith(inputDir.toPath())) {
+                    removed.add(details.getFile());
+                } else {
+                    incremental.set(false);
+                }
+            });
+        }
+
+        if (incremental.get()) {
+            doIncrementalTaskAction(changed, removed);
         } else {
-            processSingle(inputDir.toPath(), outputDir.toPath(), Collections.emptySet());
+            doFullTaskAction();
+        }
+    }
 
+    private void doFullTaskAction() throws Exception {
+        PathUtils.deleteIfExists(outputDir.toPath());
+        processSingle(inputDir.toPath(), outputDir.toPath(), Collections.emptySet());
+
+        // every dependency jar is desugared on its own, so that its output can be reused from the build cache
+        List<Path> jarOutputs = new ArrayList<>();
+        if (inputJars != null) {
+            Path jarsDir = tmpDir.toPath().resolve("desugar-jars");
+            PathUtils.deleteIfExists(jarsDir);
+            int index = 0;
+            for (File inputJar : inputJars) {
+                Path jarOutput = jarsDir.resolve(index++ + "_" + inputJar.getName());
+                processSingle(inputJar.toPath(), jarOutput, Collections.singleton(QualifiedContent.Scope.EXTERNAL_LIBRARIES));
+                jarOutputs.add(jarOutput);
+            }
         }
         waitableExecutor.waitForTasksWithQuickFail(true);
 
         processNonCachedOnes(getClasspath());
-        waitableExecutor.waitForTasksWithQuickFail(true);
+
+        for (Path jarOutput : jarOutputs) {
+            extractClasses(jarOutput, outputDir.toPath());
+        }
+    }
+
+    /**
+     * Extracts the classes of a desugared jar into the output directory, with
+     * the same filter as used for the classes that are copied for desugaring.
+     */
+    private static void extractClasses(Path jar, Path output) throws IOException {
+        try (ZipFile zipFile = new ZipFile(jar.toFile())) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (entry.isDirectory() || !name.endsWith(SdkConstants.DOT_CLASS)
+                        || name.startsWith("META-INF/versions/") || name.equals("module-info.class")) {
+                    continue;
+                }
+                Path target = output.resolve(name);
+                Files.createDirectories(target.getParent());
+                try (InputStream in = zipFile.getInputStream(entry)) {
+                    Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+    }
+
+    /**
+     * Only desugars the changed classes and their subtypes, whose output
+     * depends on the default methods of their supertypes. Desugar can only
+     * process a whole directory, so those classes are copied to a staging
+     * directory first, while the complete input directory is added to the
+     * classpath for the classes that they refer to.
+     */
+    private void doIncrementalTaskAction(Set<File> changed, Set<File> removed) throws Exception {
+        Path input = inputDir.toPath();
+        Path output = outputDir.toPath();
+
+        List<String> changedClasses = new ArrayList<>();
+        for (File file : changed) {
+            if (ClassHierarchy.isClass(file)) {
+                changedClasses.add(ClassHierarchy.className(input, file));
+            } else {
+                Path target = output.resolve(input.relativize(file.toPath()));
+                Files.createDirectories(target.getParent());
+                Files.copy(file.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        for (File file : removed) {
+            if (ClassHierarchy.isClass(file)) {
+                changedClasses.add(ClassHierarchy.className(input, file));
+            }
+            deleteOutputs(input, output, file);
+        }
+
+        Path stagingDir = tmpDir.toPath().resolve("desugar-incremental");
+        Path stagingInput = stagingDir.resolve("input");
+        Path stagingOutput = stagingDir.resolve("output");
+        PathUtils.deleteIfExists(stagingDir);
+        Files.createDirectories(stagingInput);
+        Files.createDirectories(stagingOutput);
+
+        ClassHierarchy hierarchy = ClassHierarchy.read(input);
+        int count = 0;
+        for (String name : hierarchy.withSubtypes(changedClasses)) {
+            File file = hierarchy.getFile(name);
+            if (file == null) {
+                // removed, or a type of the classpath
+                continue;
+            }
+            deleteOutputs(input, output, file);
+            Path target = stagingInput.resolve(input.relativize(file.toPath()));
+            Files.createDirectories(target.getParent());
+            Files.copy(file.toPath(), target);
+            count++;
+        }
+        logger.verbose("Desugaring %1$d classes, %2$d input files were removed", count, removed.size());
+        if (count == 0) {
+            return;
+        }
+
+        cacheMissAction(null, null, stagingInput, stagingOutput);
+        processNonCachedOnes(ImmutableList.<Path>builder().add(input).addAll(getClasspath()).build());
+
+        try (Stream<Path> files = Files.walk(stagingOutput)) {
+            for (Path file : files.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                Path target = output.resolve(stagingOutput.relativize(file).toString());
+                Files.createDirectories(target.getParent());
+                Files.copy(file, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        PathUtils.deleteIfExists(stagingDir);
+    }
+
+    /**
+     * Deletes the output of an input file, together with the lambda classes
+     * and the interface companion class that desugar generated for it.
+     */
+    private static void deleteOutputs(Path input, Path output, File inputFile) throws IOException {
+        Path outputFile = output.resolve(input.relativize(inputFile.toPath()));
+        Files.deleteIfExists(outputFile);
+        if (!ClassHierarchy.isClass(inputFile) || !Files.isDirectory(outputFile.getParent())) {
+            return;
+        }
+        String baseName = outputFile.getFileName().toString();
+        baseName = baseName.substring(0, baseName.length() - SdkConstants.DOT_CLASS.length());
+        String companion = baseName + "$$CC" + SdkConstants.DOT_CLASS;
+        String lambdaPrefix = baseName + "$$Lambda$";
+        try (Stream<Path> siblings = Files.list(outputFile.getParent())) {
+            for (Path sibling : siblings.collect(Collectors.toList())) {
+                String fileName = sibling.getFileName().toString();
+                if (fileName.equals(companion) || fileName.startsWith(lambdaPrefix)) {
+                    Files.delete(sibling);
+                }
+            }
+        }
     }
 
     @InputDirectory
@@ -187,6 +361,17 @@ public class DesugarTask extends DefaultTask {
         this.inputDir = inputDir;
     }
 
+    /** The dependency jars, which are desugared separately from the classes of the input directory. */
+    @InputFiles
+    @Optional
+    public FileCollection getInputJars() {
+        return inputJars;
+    }
+
+    public void setInputJars(FileCollection inputJars) {
+        this.inputJars = inputJars;
+    }
+
     @Input
     public int getMinSdk() {
         return minSdk;
@@ -196,7 +381,7 @@ public class DesugarTask extends DefaultTask {
         this.minSdk = minSdk;
     }
 
-    @InputDirectory
+    @Internal
     public File getTmpDir() {
         return tmpDir;
     }
@@ -205,6 +390,18 @@ public class DesugarTask extends DefaultTask {
         this.tmpDir = tmpDir;
     }
 
+    @Classpath
+    public FileCollection getClasspathFiles() {
+        return androidRuntime;
+    }
+
+    @Classpath
+    public FileCollection getBootclasspathFiles() {
+        return getProject().files(
+                (Callable<Set<File>>) () -> androidJarClasspath.get(),
+                compilationBootclasspath.stream().map(Path::toFile).collect(Collectors.toList()));
+    }
+
     @OutputDirectory
     public File getOutputDir() {
         return outputDir;
@@ -214,21 +411,48 @@ public class DesugarTask extends DefaultTask {
         this.outputDir = outputDir;
     }
 
-    private void processNonCachedOnes(List<Path> classpath) throws IOException, ProcessException {
+    /**
+     * Desugars the cache misses in at most as many processes as the executor
+     * runs in parallel. The inputs are spread over the processes with the
+     * longest processing time first rule, using their size in bytes as an
+     * estimate of the time it takes to desugar them: the largest remaining
+     * input always goes to the process with the smallest total size so far.
+     * Waits for all the processes, and logs the wall time of each of them
+     * and of the slowest one, which is the critical path of the task.
+     */
+    private void processNonCachedOnes(List<Path> classpath) throws Exception {
         int parallelExecutions = waitableExecutor.getParallelism();
 
-        int index = 0;
+        Map<InputEntry, Long> sizes = Maps.newHashMap();
+        for (InputEntry entry : cacheMisses) {
+            sizes.put(entry, inputSize(entry.getInputPath()));
+        }
+        List<InputEntry> entries = new ArrayList<>(cacheMisses);
+        entries.sort(Comparator.comparing((InputEntry entry) -> sizes.get(entry)).reversed()
+                .thenComparing(entry -> entry.getInputPath().toString()));
+        cacheMisses.clear();
+
+        int bucketCount = Math.min(parallelExecutions, entries.size());
+        long[] bucketSizes = new long[bucketCount];
+        long[] bucketTimes = new long[bucketCount];
         Multimap<Integer, InputEntry> procBuckets = ArrayListMultimap.create();
-        for (InputEntry pathPathEntry : cacheMisses) {
-            int bucketId = index % parallelExecutions;
-            procBuckets.put(bucketId, pathPathEntry);
-            index++;
+        for (InputEntry entry : entries) {
+            int bucketId = 0;
+            for (int i = 1; i < bucketCount; i++) {
+                if (bucketSizes[i] < bucketSizes[bucketId]) {
+                    bucketId = i;
+                }
+            }
+            bucketSizes[bucketId] += sizes.get(entry);
+            procBuckets.put(bucketId, entry);
         }
 
         List<Path> desugarBootclasspath = getBootclasspath();
+        long start = System.nanoTime();
         for (Integer bucketId : procBuckets.keySet()) {
             Callable<Void> callable =
                     () -> {
+                        long bucketStart = System.nanoTime();
                         Map<Path, Path> inToOut = Maps.newHashMap();
                         for (InputEntry e : procBuckets.get(bucketId)) {
                             inToOut.put(e.getInputPath(), e.getOutputPath());
@@ -261,10 +485,41 @@ public class DesugarTask extends DefaultTask {
                             }
                         }
 
+                        bucketTimes[bucketId] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - bucketStart);
+                        getLogger().info("Desugar process {}: {} inputs, {} bytes, {} ms",
+                                bucketId,
+                                procBuckets.get(bucketId).size(),
+                                bucketSizes[bucketId],
+                                bucketTimes[bucketId]);
                         return null;
                     };
             waitableExecutor.execute(callable);
         }
+        waitableExecutor.waitForTasksWithQuickFail(true);
+
+        if (bucketCount > 0) {
+            int slowest = 0;
+            for (int i = 1; i < bucketCount; i++) {
+                if (bucketTimes[i] > bucketTimes[slowest]) {
+                    slowest = i;
+                }
+            }
+            getLogger().info("Desugar critical path: process {} took {} ms of {} ms for {} processes",
+                    slowest,
+                    bucketTimes[slowest],
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                    bucketCount);
+        }
+    }
+
+    /** Returns the size in bytes of an input jar, or of all the files of an input directory. */
+    private static long inputSize(Path input) throws IOException {
+        if (!Files.isDirectory(input)) {
+            return Files.size(input);
+        }
+        try (Stream<Path> files = Files.walk(input)) {
+            return files.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum();
+        }
     }
 
     @NonNull
@@ -440,7 +695,7 @@ public class DesugarTask extends DefaultTask {
                 .putFile(
                         FileCacheInputParams.FILE.name(),
                         input.toFile(),
-                        FileCache.FileProperties.PATH_HASH)
+                        FileCache.FileProperties.HASH)
                 .putString(
                         FileCacheInputParams.PLUGIN_VERSION.name(),
                         Version.ANDROID_GRADLE_PLUGIN_VERSION)
@@ -0,0 +1,452 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2018, Gluon Software
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.javafxports.jfxmobile.plugin.android.task;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Removes the debug information from ELF shared libraries: the <code>.debug_*</code>
+ * sections, their relocations, and the <code>.symtab</code> symbol table with its string
+ * table. This is what <code>strip --strip-unneeded</code> does for a shared library, the
+ * dynamic symbols are kept.
+ * <p>
+ * Only sections that are not loaded are removed, and the bytes that are loaded are
+ * copied unchanged, at the same offsets. The sections that are kept after them, and the
+ * section header table, are written again at the end of the file. Files that are not ELF
+ * shared libraries, or that are laid out in an unexpected way, are left alone.
+ */
+final class ElfStripper {
+
+    private static final int ELFCLASS32 = 1;
+    private static final int ELFCLASS64 = 2;
+    private static final int ELFDATA2LSB = 1;
+    private static final int ELFDATA2MSB = 2;
+    private static final int ET_DYN = 3;
+
+    private static final int SHT_SYMTAB = 2;
+    private static final int SHT_RELA = 4;
+    private static final int SHT_NOBITS = 8;
+    private static final int SHT_REL = 9;
+    private static final int SHT_SYMTAB_SHNDX = 18;
+    private static final long SHF_ALLOC = 0x2;
+    private static final long SHF_INFO_LINK = 0x40;
+    private static final int SHN_LORESERVE = 0xff00;
+
+    private final boolean is64;
+    private final ByteOrder order;
+    private final ByteBuffer header;
+    private final List<Section> sections = new ArrayList<>();
+    private final long[] segmentEnds;
+    private final long fileSize;
+
+    /** A section header, with the fields that matter here. */
+    private static final class Section {
+        final int index;
+        final ByteBuffer header;
+        String name;
+        int type;
+        long flags;
+        long offset;
+        long size;
+        int link;
+        int info;
+        long addralign;
+        boolean removed;
+        int newIndex;
+        long newOffset;
+
+        Section(int index, ByteBuffer header) {
+            this.index = index;
+            this.header = header;
+        }
+
+        boolean isAlloc() {
+            return (flags & SHF_ALLOC) != 0;
+        }
+
+        boolean hasData() {
+            return type != SHT_NOBITS && size > 0;
+        }
+
+        /** Whether sh_info is the index of a section. */
+        boolean hasInfoLink() {
+            return type == SHT_REL || type == SHT_RELA || (flags & SHF_INFO_LINK) != 0;
+        }
+    }
+
+    private ElfStripper(boolean is64, ByteOrder order, ByteBuffer header, long[] segmentEnds, long fileSize) {
+        this.is64 = is64;
+        this.order = order;
+        this.header = header;
+        this.segmentEnds = segmentEnds;
+        this.fileSize = fileSize;
+    }
+
+    /**
+     * Writes the given ELF shared library without its debug information.
+     * @param input the library
+     * @param output the file the stripped library is written to, only if this returns true
+     * @return false if there was nothing to strip, or if the library is not supported
+     */
+    static boolean strip(File input, File output) throws IOException {
+        try (FileChannel in = FileChannel.open(input.toPath(), StandardOpenOption.READ)) {
+            ElfStripper elf = read(in);
+            if (elf == null || !elf.markRemovedSections()) {
+                return false;
+            }
+
+            long length = elf.layout();
+            if (length >= elf.fileSize) {
+                return false;
+            }
+
+            try (FileChannel out = FileChannel.open(output.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                elf.write(in, out);
+            }
+            return true;
+        }
+    }
+
+    private static ElfStripper read(FileChannel in) throws IOException {
+        long fileSize = in.size();
+        if (fileSize < 52) {
+            return null;
+        }
+        ByteBuffer ident = readFully(in, 0, 16);
+        if (ident.getInt(0) != 0x7f454c46) {
+            return null;
+        }
+        int elfClass = ident.get(4);
+        int elfData = ident.get(5);
+        if ((elfClass != ELFCLASS32 && elfClass != ELFCLASS64)
+                || (elfData != ELFDATA2LSB && elfData != ELFDATA2MSB)) {
+            return null;
+        }
+        boolean is64 = elfClass == ELFCLASS64;
+        ByteOrder order = elfData == ELFDATA2LSB ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+
+        ByteBuffer header = readFully(in, 0, is64 ? 64 : 52).order(order);
+        if (header.getShort(16) != ET_DYN) {
+            return null;
+        }
+        long phoff = is64 ? header.getLong(32) : unsigned(header.getInt(28));
+        long shoff = is64 ? header.getLong(40) : unsigned(header.getInt(32));
+        int phentsize = header.getShort(is64 ? 54 : 42) & 0xffff;
+        int phnum = header.getShort(is64 ? 56 : 44) & 0xffff;
+        int shentsize = header.getShort(is64 ? 58 : 46) & 0xffff;
+        int shnum = header.getShort(is64 ? 60 : 48) & 0xffff;
+        int shstrndx = header.getShort(is64 ? 62 : 50) & 0xffff;
+        // extended section numbering is not supported
+        if (shnum == 0 || shnum >= SHN_LORESERVE || shstrndx >= shnum
+                || shentsize != (is64 ? 64 : 40) || phentsize != (is64 ? 56 : 32)
+                || !fits(shoff, (long) shnum * shentsize, fileSize)
+                || !fits(phoff, (long) phnum * phentsize, fileSize)) {
+            return null;
+        }
+
+        // the loaded bytes, and the program headers themselves, are kept as they are
+        long[] segmentEnds = new long[phnum + 1];
+        segmentEnds[phnum] = Math.max(header.capacity(), phoff + (long) phnum * phentsize);
+        ByteBuffer programHeaders = readFully(in, phoff, phnum * phentsize).order(order);
+        for (int i = 0; i < phnum; i++) {
+            int base = i * phentsize;
+            long offset = is64 ? programHeaders.getLong(base + 8) : unsigned(programHeaders.getInt(base + 4));
+            long filesz = is64 ? programHeaders.getLong(base + 32) : unsigned(programHeaders.getInt(base + 16));
+            if (!fits(offset, filesz, fileSize)) {
+                return null;
+            }
+            segmentEnds[i] = offset + filesz;
+        }
+
+        ElfStripper elf = new ElfStripper(is64, order, header, segmentEnds, fileSize);
+        ByteBuffer sectionHeaders = readFully(in, shoff, shnum * shentsize).order(order);
+        for (int i = 0; i < shnum; i++) {
+            sectionHeaders.limit((i + 1) * shentsize).position(i * shentsize);
+            Section section = new Section(i, sectionHeaders.slice().order(order));
+            ByteBuffer h = section.header;
+            section.type = h.getInt(4);
+            section.flags = is64 ? h.getLong(8) : unsigned(h.getInt(8));
+            section.offset = is64 ? h.getLong(24) : unsigned(h.getInt(16));
+            section.size = is64 ? h.getLong(32) : unsigned(h.getInt(20));
+            section.link = h.getInt(is64 ? 40 : 24);
+            section.info = h.getInt(is64 ? 44 : 28);
+            section.addralign = is64 ? h.getLong(48) : unsigned(h.getInt(32));
+            if ((section.hasData() && !fits(section.offset, section.size, fileSize))
+                    || section.link < 0 || section.link >= shnum
+                    || (section.hasInfoLink() && (section.info < 0 || section.info >= shnum))) {
+                return null;
+            }
+            elf.sections.add(section);
+        }
+
+        Section shstrtab = elf.sections.get(shstrndx);
+        if (!shstrtab.hasData() || shstrtab.size > Integer.MAX_VALUE) {
+            return null;
+        }
+        ByteBuffer names = readFully(in, shstrtab.offset, (int) shstrtab.size);
+        for (Section section : elf.sections) {
+            int name = section.header.getInt(0);
+            if (name < 0 || name >= names.capacity()) {
+                return null;
+            }
+            int end = name;
+            while (end < names.capacity() && names.get(end) != 0) {
+                end++;
+            }
+            section.name = new String(names.array(), name, end - name, StandardCharsets.ISO_8859_1);
+        }
+        return elf;
+    }
+
+    /**
+     * Marks the sections that are removed.
+     * @return false if there is nothing to remove, or if removing it would leave a section
+     *         that refers to a removed one
+     */
+    private boolean markRemovedSections() {
+        boolean removedAny = false;
+        for (Section section : sections) {
+            if (section.index != 0 && !section.isAlloc()
+                    && (section.name.startsWith(".debug") || section.name.startsWith(".zdebug")
+                    || section.type == SHT_SYMTAB)) {
+                section.removed = true;
+                removedAny = true;
+            }
+        }
+        if (!removedAny) {
+            return false;
+        }
+
+        // the relocations and the extended indexes of removed sections, and the string
+        // tables that only removed sections use
+        int shstrndx = header.getShort(is64 ? 62 : 50) & 0xffff;
+        for (Section section : sections) {
+            if (!section.removed && !section.isAlloc()
+                    && ((section.hasInfoLink() && sections.get(section.info).removed)
+                    || (section.type == SHT_SYMTAB_SHNDX && sections.get(section.link).removed))) {
+                section.removed = true;
+            }
+        }
+        for (Section section : sections) {
+            if (section.removed || section.isAlloc() || section.index == 0 || section.index == shstrndx) {
+                continue;
+            }
+            boolean linked = false;
+            boolean linkedByKept = false;
+            for (Section other : sections) {
+                if (other.link == section.index && other.index != 0) {
+                    linked = true;
+                    linkedByKept |= !other.removed;
+                }
+            }
+            if (linked && !linkedByKept) {
+                section.removed = true;
+            }
+        }
+
+        // the dynamic symbols refer to the loaded sections by index, so these must keep
+        // their indexes
+        int firstRemoved = Integer.MAX_VALUE;
+        for (Section section : sections) {
+            if (section.removed) {
+                firstRemoved = Math.min(firstRemoved, section.index);
+            }
+        }
+        for (Section section : sections) {
+            if (section.removed) {
+                continue;
+            }
+            if ((section.isAlloc() && section.index > firstRemoved)
+                    || sections.get(section.link).removed
+                    || (section.hasInfoLink() && sections.get(section.info).removed)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Computes the new indexes and offsets of the sections that are kept.
+     * @return the length of the stripped file
+     */
+    private long layout() {
+        long end = 0;
+        for (long segmentEnd : segmentEnds) {
+            end = Math.max(end, segmentEnd);
+        }
+        for (Section section : sections) {
+            if (!section.removed && section.isAlloc() && section.hasData()) {
+                end = Math.max(end, section.offset + section.size);
+            }
+        }
+
+        // the kept sections that are not loaded, in the order of the file
+        List<Section> moved = new ArrayList<>();
+        int newIndex = 0;
+        for (Section section : sections) {
+            if (section.removed) {
+                continue;
+            }
+            section.newIndex = newIndex++;
+            section.newOffset = section.offset;
+            if (!section.isAlloc() && section.index != 0) {
+                moved.add(section);
+            }
+        }
+        moved.sort(Comparator.comparingLong(section -> section.offset));
+        for (Section section : moved) {
+            if (section.hasData() && section.offset < end) {
+                // already in the part of the file that is kept
+                end = Math.max(end, section.offset + section.size);
+            } else {
+                end = align(end, section.addralign);
+                section.newOffset = end;
+                if (section.hasData()) {
+                    end += section.size;
+                }
+            }
+        }
+
+        // the new section header table
+        end = align(end, is64 ? 8 : 4);
+        long shoff = end;
+        if (is64) {
+            header.putLong(40, shoff);
+        } else {
+            header.putInt(32, (int) shoff);
+        }
+        header.putShort(is64 ? 60 : 48, (short) newIndex);
+        int shstrndx = header.getShort(is64 ? 62 : 50) & 0xffff;
+        header.putShort(is64 ? 62 : 50, (short) sections.get(shstrndx).newIndex);
+        return end + (long) newIndex * (is64 ? 64 : 40);
+    }
+
+    private void write(FileChannel in, FileChannel out) throws IOException {
+        long kept = 0;
+        for (long segmentEnd : segmentEnds) {
+            kept = Math.max(kept, segmentEnd);
+        }
+        for (Section section : sections) {
+            if (!section.removed && section.hasData() && section.newOffset == section.offset) {
+                kept = Math.max(kept, section.offset + section.size);
+            }
+        }
+        transfer(in, 0, kept, out, 0);
+        header.clear();
+        writeFully(out, header, 0);
+
+        long shoff = is64 ? header.getLong(40) : unsigned(header.getInt(32));
+        int shentsize = is64 ? 64 : 40;
+        ByteBuffer sectionHeaders = ByteBuffer.allocate((header.getShort(is64 ? 60 : 48) & 0xffff) * shentsize)
+                .order(order);
+        for (Section section : sections) {
+            if (section.removed) {
+                continue;
+            }
+            if (section.hasData() && section.newOffset != section.offset) {
+                transfer(in, section.offset, section.size, out, section.newOffset);
+            }
+
+            ByteBuffer h = section.header;
+            h.clear();
+            if (is64) {
+                h.putLong(24, section.newOffset);
+            } else {
+                h.putInt(16, (int) section.newOffset);
+            }
+            h.putInt(is64 ? 40 : 24, sections.get(section.link).newIndex);
+            if (section.hasInfoLink()) {
+                h.putInt(is64 ? 44 : 28, sections.get(section.info).newIndex);
+            }
+            sectionHeaders.put(h);
+        }
+        sectionHeaders.flip();
+        writeFully(out, sectionHeaders, shoff);
+    }
+
+    private static void transfer(FileChannel in, long position, long count, FileChannel out, long target)
+            throws IOException {
+        while (count > 0) {
+            long transferred = in.transferTo(position, count, out.position(target));
+            if (transferred <= 0) {
+                throw new EOFException("Unexpected end of file");
+            }
+            position += transferred;
+            target += transferred;
+            count -= transferred;
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel in, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += out.write(buffer, position);
+        }
+    }
+
+    private static boolean fits(long offset, long length, long fileSize) {
+        return offset >= 0 && length >= 0 && offset <= fileSize && length <= fileSize - offset;
+    }
+
+    private static long align(long offset, long alignment) {
+        if (alignment <= 1) {
+            return offset;
+        }
+        long remainder = offset % alignment;
+        return remainder == 0 ? offset : offset + alignment - remainder;
+    }
+
+    private static long unsigned(int value) {
+        return value & 0xffffffffL;
+    }
+}
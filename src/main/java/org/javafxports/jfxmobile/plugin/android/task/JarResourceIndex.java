@@ -0,0 +1,236 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2018, Gluon Software
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.javafxports.jfxmobile.plugin.android.task;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+
+/**
+ * Records which entries of the dependency jars are resources that go into an APK, so
+ * that the jars without resources, typically most of them, are not even opened on the
+ * next build.
+ * <p>
+ * A jar is identified by its path, length and modification time. The jars that are not
+ * in the index are scanned in parallel, through their central directory only.
+ */
+final class JarResourceIndex {
+
+    private static final int VERSION = 1;
+
+    private final File mIndexFile;
+    private final Map<String, Jar> mJars = new HashMap<>();
+
+    /** The resources of a jar, as they were when it was scanned. */
+    private static final class Jar {
+        final long length;
+        final long lastModified;
+        final List<String> resources;
+
+        Jar(long length, long lastModified, List<String> resources) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.resources = resources;
+        }
+
+        boolean isValidFor(File file) {
+            return file.length() == length && file.lastModified() == lastModified;
+        }
+    }
+
+    /**
+     * @param indexFile the file the index is read from, if it exists, and written to
+     */
+    JarResourceIndex(File indexFile) {
+        mIndexFile = indexFile;
+        read();
+    }
+
+    /**
+     * Returns the resources of each jar, scanning the jars that changed since the index
+     * was written.
+     * @param jars the jars
+     * @param isResource decides whether an entry is a resource. It must always give the
+     *                   same result for the same entry, since the result is kept in the index.
+     * @param threads the number of threads on which the jars are scanned
+     * @return the names of the resources, by jar, in the order of the jars
+     */
+    Map<File, List<String>> getResources(List<File> jars, Predicate<String> isResource, int threads)
+            throws IOException {
+        Map<File, Future<Jar>> scans = new LinkedHashMap<>();
+        ExecutorService executor = null;
+        try {
+            for (File jar : jars) {
+                Jar indexed = mJars.get(jar.getAbsolutePath());
+                if (indexed != null && indexed.isValidFor(jar)) {
+                    scans.put(jar, null);
+                    continue;
+                }
+
+                if (executor == null) {
+                    executor = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+                        Thread thread = new Thread(runnable, "JarResourceIndex scan");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+                scans.put(jar, executor.submit(() -> scan(jar, isResource)));
+            }
+
+            Map<File, List<String>> resources = new LinkedHashMap<>();
+            for (Map.Entry<File, Future<Jar>> scan : scans.entrySet()) {
+                File jar = scan.getKey();
+                if (scan.getValue() != null) {
+                    // the length and time are read before the jar is scanned, in case it changes
+                    mJars.put(jar.getAbsolutePath(), get(scan.getValue(), jar));
+                }
+                resources.put(jar, mJars.get(jar.getAbsolutePath()).resources);
+            }
+            return resources;
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /** Writes the index, with the jars that were used by the last call to {@link #getResources}. */
+    void write(Iterable<File> jars) throws IOException {
+        File parent = mIndexFile.getAbsoluteFile().getParentFile();
+        parent.mkdirs();
+
+        List<String> paths = new ArrayList<>();
+        for (File jar : jars) {
+            if (mJars.containsKey(jar.getAbsolutePath())) {
+                paths.add(jar.getAbsolutePath());
+            }
+        }
+
+        // replaced at once, so that a build that fails while writing does not leave half an index
+        File tempFile = File.createTempFile(mIndexFile.getName(), ".tmp", parent);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(VERSION);
+            out.writeInt(paths.size());
+            for (String path : paths) {
+                Jar jar = mJars.get(path);
+                out.writeUTF(path);
+                out.writeLong(jar.length);
+                out.writeLong(jar.lastModified);
+                out.writeInt(jar.resources.size());
+                for (String resource : jar.resources) {
+                    out.writeUTF(resource);
+                }
+            }
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+        Files.move(tempFile.toPath(), mIndexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Jar scan(File file, Predicate<String> isResource) throws IOException {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        List<String> resources = new ArrayList<>();
+        try (RawZipFile zip = new RawZipFile(file)) {
+            for (RawZipFile.Entry entry : zip.getEntries()) {
+                if (!entry.isDirectory() && isResource.test(entry.name)) {
+                    resources.add(entry.name);
+                }
+            }
+        }
+        return new Jar(length, lastModified, Collections.unmodifiableList(resources));
+    }
+
+    private static Jar get(Future<Jar> future, File jar) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while scanning " + jar);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to scan " + jar, e.getCause());
+        }
+    }
+
+    /** Reads the index, which is simply empty if it cannot be read. */
+    private void read() {
+        if (!mIndexFile.isFile()) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mIndexFile)))) {
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            int jarCount = in.readInt();
+            Map<String, Jar> jars = new HashMap<>();
+            for (int i = 0; i < jarCount; i++) {
+                String path = in.readUTF();
+                long length = in.readLong();
+                long lastModified = in.readLong();
+                int resourceCount = in.readInt();
+                List<String> resources = new ArrayList<>(resourceCount);
+                for (int j = 0; j < resourceCount; j++) {
+                    resources.add(in.readUTF());
+                }
+                jars.put(path, new Jar(length, lastModified, Collections.unmodifiableList(resources)));
+            }
+            mJars.putAll(jars);
+        } catch (IOException e) {
+            mJars.clear();
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2018, Gluon Software
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.javafxports.jfxmobile.plugin.android.task;
+
+import sun.security.pkcs.ContentInfo;
+import sun.security.pkcs.PKCS7;
+import sun.security.pkcs.SignerInfo;
+import sun.security.x509.AlgorithmId;
+import sun.security.x509.X500Name;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.jar.JarFile;
+
+/**
+ * Signs an APK with the JAR signature scheme.
+ * <p>
+ * Only the name and the digest of each entry are kept while the APK is written.
+ * The stanzas of <code>MANIFEST.MF</code> and <code>CERT.SF</code> are then written
+ * in a single pass, instead of building a {@link java.util.jar.Manifest} with an
+ * {@link java.util.jar.Attributes} object per entry and serializing it twice.
+ */
+final class JarSignatureScheme {
+
+    /** Android verifies SHA-256 digests and signatures from API 18. */
+    private static final int MIN_SDK_VERSION_SHA256 = 18;
+
+    private static final int MAX_LINE_LENGTH = 72;
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    private final PrivateKey mKey;
+    private final X509Certificate mCertificate;
+    private final boolean mSignedV2;
+
+    private final String mDigestAlgorithm;
+    private final String mDigestName;
+    private final String mSignatureAlgorithm;
+
+    private final Map<String, byte[]> mEntries = new LinkedHashMap<>();
+
+    /**
+     * @param key the private key used to sign the APK
+     * @param certificate the certificate of the key
+     * @param minSdkVersion the minimum API level of the APK, which decides between SHA-1
+     *                      and SHA-256
+     * @param signedV2 whether the APK is also signed with the APK Signature Scheme v2
+     */
+    JarSignatureScheme(PrivateKey key, X509Certificate certificate, int minSdkVersion,
+            boolean signedV2) {
+        mKey = key;
+        mCertificate = certificate;
+        mSignedV2 = signedV2;
+
+        boolean sha256 = minSdkVersion >= MIN_SDK_VERSION_SHA256;
+        mDigestAlgorithm = sha256 ? "SHA-256" : "SHA1";
+        mDigestName = sha256 ? "SHA-256" : "SHA1";
+        String keyAlgorithm = "EC".equals(key.getAlgorithm()) ? "ECDSA" : key.getAlgorithm();
+        mSignatureAlgorithm = (sha256 ? "SHA256with" : "SHA1with") + keyAlgorithm;
+    }
+
+    /** Creates a digest for the data of an entry. */
+    MessageDigest createDigest() throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance(mDigestAlgorithm);
+    }
+
+    /**
+     * Adds an entry of the APK, replacing any entry that has the same name.
+     * @param name the path of the entry in the APK
+     * @param digest the digest of the uncompressed data of the entry
+     */
+    void addEntry(String name, byte[] digest) {
+        mEntries.put(name, digest);
+    }
+
+    /** Returns the digest of an entry that was added, or <code>null</code>. */
+    byte[] getDigest(String name) {
+        return mEntries.get(name);
+    }
+
+    /**
+     * Creates the manifest, the signature file and the signature block.
+     * @return the content of the files, by their path in the APK, in the order in which
+     *         they must be written
+     */
+    Map<String, byte[]> sign() throws IOException, GeneralSecurityException {
+        Base64.Encoder base64 = Base64.getEncoder();
+        MessageDigest digest = MessageDigest.getInstance(mDigestAlgorithm);
+        String digestAttribute = mDigestName + "-Digest";
+
+        ByteArrayOutputStream manifest = new ByteArrayOutputStream(mEntries.size() * 96);
+        writeAttribute(manifest, "Manifest-Version", "1.0");
+        writeAttribute(manifest, "Created-By", "1.0 (Android)");
+        manifest.write(CRLF);
+
+        ByteArrayOutputStream signatureEntries = new ByteArrayOutputStream(mEntries.size() * 96);
+        ByteArrayOutputStream stanza = new ByteArrayOutputStream(256);
+        for (Map.Entry<String, byte[]> entry : mEntries.entrySet()) {
+            stanza.reset();
+            writeAttribute(stanza, "Name", entry.getKey());
+            writeAttribute(stanza, digestAttribute, base64.encodeToString(entry.getValue()));
+            stanza.write(CRLF);
+            stanza.writeTo(manifest);
+
+            // the signature file holds the digest of the stanza of the entry in the manifest
+            digest.update(stanza.toByteArray());
+            writeAttribute(signatureEntries, "Name", entry.getKey());
+            writeAttribute(signatureEntries, digestAttribute, base64.encodeToString(digest.digest()));
+            signatureEntries.write(CRLF);
+        }
+        byte[] manifestBytes = manifest.toByteArray();
+
+        ByteArrayOutputStream signatureFile = new ByteArrayOutputStream(signatureEntries.size() + 256);
+        writeAttribute(signatureFile, "Signature-Version", "1.0");
+        writeAttribute(signatureFile, "Created-By", "1.0 (Android)");
+        if (mSignedV2) {
+            // tells verifiers that support the v2 scheme that the v2 signature must not be stripped
+            writeAttribute(signatureFile, "X-Android-APK-Signed", "2");
+        }
+        writeAttribute(signatureFile, mDigestName + "-Digest-Manifest",
+                base64.encodeToString(digest.digest(manifestBytes)));
+        signatureFile.write(CRLF);
+        signatureEntries.writeTo(signatureFile);
+
+        // A bug in the java.util.jar implementation of Android platforms
+        // up to version 1.6 will cause a spurious IOException to be thrown
+        // if the length of the signature file is a multiple of 1024 bytes.
+        // As a workaround, add an extra CRLF in this case.
+        if ((signatureFile.size() % 1024) == 0) {
+            signatureFile.write(CRLF);
+        }
+        byte[] signatureFileBytes = signatureFile.toByteArray();
+
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put(JarFile.MANIFEST_NAME, manifestBytes);
+        files.put("META-INF/CERT.SF", signatureFileBytes);
+        files.put("META-INF/CERT." + mKey.getAlgorithm(), createSignatureBlock(signatureFileBytes));
+        return files;
+    }
+
+    /** Creates the PKCS#7 signature block of the signature file. */
+    private byte[] createSignatureBlock(byte[] signatureFile) throws IOException, GeneralSecurityException {
+        Signature signature = Signature.getInstance(mSignatureAlgorithm);
+        signature.initSign(mKey);
+        signature.update(signatureFile);
+
+        SignerInfo signerInfo = new SignerInfo(
+                new X500Name(mCertificate.getIssuerX500Principal().getName()),
+                mCertificate.getSerialNumber(),
+                AlgorithmId.get(mDigestAlgorithm),
+                AlgorithmId.get(mKey.getAlgorithm()),
+                signature.sign());
+
+        PKCS7 pkcs7 = new PKCS7(
+                new AlgorithmId[] { AlgorithmId.get(mDigestAlgorithm) },
+                new ContentInfo(ContentInfo.DATA_OID, null),
+                new X509Certificate[] { mCertificate },
+                new SignerInfo[] { signerInfo });
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        pkcs7.encodeSignedData(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes a header line, with continuation lines so that no line is longer than
+     * 72 bytes.
+     */
+    private static void writeAttribute(ByteArrayOutputStream out, String name, String value) {
+        byte[] line = (name + ": " + value).getBytes(StandardCharsets.UTF_8);
+        int start = 0;
+        int max = MAX_LINE_LENGTH;
+        while (line.length - start > max) {
+            int end = start + max;
+            // do not split a UTF-8 sequence
+            while ((line[end] & 0xc0) == 0x80) {
+                end--;
+            }
+            out.write(line, start, end - start);
+            out.write(CRLF, 0, 2);
+            out.write(' ');
+            start = end;
+            // the leading space counts in the length of a continuation line
+            max = MAX_LINE_LENGTH - 1;
+        }
+        out.write(line, start, line.length - start);
+        out.write(CRLF, 0, 2);
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2018, Gluon Software
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.javafxports.jfxmobile.plugin.android.task;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Strips the debug information from the native libraries that are packaged, with
+ * {@link ElfStripper}, and keeps the stripped libraries between builds.
+ * <p>
+ * A stripped library is stored in the directory under the SHA-256 hash of the content of
+ * the original, so it is found again whatever the path of the original is, and it keeps
+ * its modification time as long as the original does not change. Libraries that have
+ * nothing to strip are packaged as they are. This class is thread safe.
+ */
+public class NativeLibraryStripper {
+
+    private static final String SUFFIX = ".so";
+
+    private final File directory;
+    /** The library to package, by path, length and modification time of the original. */
+    private final ConcurrentMap<String, FutureTask<File>> libraries = new ConcurrentHashMap<>();
+    /** The stripped library, or null if there is nothing to strip, by its name in the directory. */
+    private final ConcurrentMap<String, FutureTask<File>> stripped = new ConcurrentHashMap<>();
+    private final Set<String> used = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param directory the directory in which the stripped libraries are kept
+     */
+    public NativeLibraryStripper(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the library to package instead of the given one. A library that is asked for
+     * by several threads at once, for APKs that are packaged at the same time, is only
+     * stripped by one of them.
+     * @param library a native library
+     * @return the stripped library, or the library itself if there was nothing to strip
+     */
+    File strip(File library) throws IOException {
+        String key = library.getAbsolutePath() + ":" + library.length() + ":" + library.lastModified();
+        return get(libraries, key, () -> {
+            // copies of the same library are only stripped once too
+            String name = hash(library) + SUFFIX;
+            File file = get(stripped, name, () -> doStrip(library, name));
+            return file != null ? file : library;
+        });
+    }
+
+    /**
+     * Returns the file computed for the given key, computing it if no other thread did.
+     */
+    private static File get(ConcurrentMap<String, FutureTask<File>> files, String key, Callable<File> compute)
+            throws IOException {
+        FutureTask<File> task = new FutureTask<>(compute);
+        FutureTask<File> existing = files.putIfAbsent(key, task);
+        if (existing != null) {
+            task = existing;
+        }
+        // does nothing if another thread already runs the task
+        task.run();
+
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while stripping " + key);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to strip " + key, e.getCause());
+        }
+    }
+
+    /**
+     * Deletes the stripped libraries that were not used since this stripper was created.
+     */
+    public void deleteUnused() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!used.contains(file.getName())) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * @return the stripped library, or null if there is nothing to strip
+     */
+    private File doStrip(File library, String name) throws IOException {
+        File file = new File(directory, name);
+        used.add(name);
+        if (file.isFile()) {
+            return file;
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+        File tempFile = File.createTempFile(name, ".tmp", directory);
+        try {
+            if (!ElfStripper.strip(library, tempFile)) {
+                return null;
+            }
+            // another build may be stripping the same library
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            return file;
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+    private static String hash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream input = new FileInputStream(file)) {
+            int count;
+            while ((count = input.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+            }
+        }
+
+        StringBuilder name = new StringBuilder();
+        for (byte b : digest.digest()) {
+            name.append(String.format("%02x", b));
+        }
+        return name.toString();
+    }
+}
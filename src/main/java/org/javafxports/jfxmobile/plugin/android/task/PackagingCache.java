@@ -0,0 +1,282 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2018, Gluon Software
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.javafxports.jfxmobile.plugin.android.task;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Keeps the compressed data and the digests of the entries of an APK between builds,
+ * so that the entries whose source did not change are neither compressed nor digested
+ * again.
+ * <p>
+ * Each entry is stored in its own file, named after the hash of its key. The key
+ * describes the source of the entry and how it was compressed and digested, so an entry
+ * is never found for a different source. The cache is best effort: an entry that cannot
+ * be read or written is simply missing. Once the cache grows larger than its maximum
+ * size, {@link #evict()} deletes the entries that were used least recently.
+ * <p>
+ * When several APKs are packaged at the same time from the same files, the entries can
+ * also be kept in memory, so that each of them is computed only once.
+ */
+public class PackagingCache {
+
+    /** The default maximum size of the cache, in bytes. */
+    public static final long DEFAULT_MAX_SIZE = 256L * 1024 * 1024;
+
+    private static final int VERSION = 1;
+
+    private final File directory;
+    private final long maxSize;
+    private volatile ConcurrentMap<String, FutureTask<Entry>> memory;
+
+    /** A cached entry: its CRC, digest, and possibly its compressed data. */
+    static final class Entry {
+        final int method;
+        final long crc;
+        final long size;
+        final byte[] digest;
+        final byte[] data;
+
+        /**
+         * @param method the compression method of the data
+         * @param crc the CRC of the uncompressed data
+         * @param size the size of the uncompressed data
+         * @param digest the digest of the uncompressed data for the JAR signature, or <code>null</code>
+         * @param data the compressed data, or <code>null</code> when only the digest is cached
+         */
+        Entry(int method, long crc, long size, byte[] digest, byte[] data) {
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.digest = digest;
+            this.data = data;
+        }
+    }
+
+    /**
+     * @param directory the directory of the cache, created when needed
+     * @param maxSize the size in bytes that the cache is reduced to by {@link #evict()}
+     */
+    public PackagingCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Sets whether the entries that are used are also kept in memory, until this is
+     * turned off again.
+     */
+    public void setKeepInMemory(boolean keepInMemory) {
+        memory = keepInMemory ? new ConcurrentHashMap<>() : null;
+    }
+
+    /**
+     * Returns the entry with the given key, computing and storing it if it is not cached.
+     * This method is thread safe. When the entries are kept in memory, an entry that is
+     * asked for by several threads at once is only computed by one of them.
+     * @param key the key of the entry
+     * @param compute computes the entry when it is not cached
+     */
+    Entry get(String key, Callable<Entry> compute) throws IOException {
+        FutureTask<Entry> task = new FutureTask<>(() -> {
+            Entry entry = get(key);
+            if (entry == null) {
+                entry = compute.call();
+                put(key, entry);
+            }
+            return entry;
+        });
+
+        ConcurrentMap<String, FutureTask<Entry>> memory = this.memory;
+        if (memory != null) {
+            FutureTask<Entry> existing = memory.putIfAbsent(key, task);
+            if (existing != null) {
+                task = existing;
+            }
+        }
+        // does nothing if another thread already runs the task
+        task.run();
+
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + key);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to compute " + key, e.getCause());
+        }
+    }
+
+    /**
+     * Returns the entry with the given key, or <code>null</code> if it is not cached.
+     * This method is thread safe.
+     */
+    Entry get(String key) {
+        File file = getFile(key);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != VERSION || !in.readUTF().equals(key)) {
+                return null;
+            }
+            int method = in.readUnsignedShort();
+            long crc = in.readLong();
+            long size = in.readLong();
+            byte[] digest = null;
+            int digestLength = in.readUnsignedByte();
+            if (digestLength > 0) {
+                digest = new byte[digestLength];
+                in.readFully(digest);
+            }
+            byte[] data = null;
+            int dataLength = in.readInt();
+            if (dataLength >= 0) {
+                data = new byte[dataLength];
+                in.readFully(data);
+            }
+
+            // the least recently used entries are evicted first
+            file.setLastModified(System.currentTimeMillis());
+            return new Entry(method, crc, size, digest, data);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stores an entry with the given key, replacing any previous one.
+     * This method is thread safe.
+     */
+    void put(String key, Entry entry) {
+        File file = getFile(key);
+        File tempFile = null;
+        try {
+            Files.createDirectories(directory.toPath());
+            tempFile = File.createTempFile(file.getName(), ".tmp", directory);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                out.writeInt(VERSION);
+                out.writeUTF(key);
+                out.writeShort(entry.method);
+                out.writeLong(entry.crc);
+                out.writeLong(entry.size);
+                if (entry.digest != null) {
+                    out.writeByte(entry.digest.length);
+                    out.write(entry.digest);
+                } else {
+                    out.writeByte(0);
+                }
+                if (entry.data != null) {
+                    out.writeInt(entry.data.length);
+                    out.write(entry.data);
+                } else {
+                    out.writeInt(-1);
+                }
+            }
+            // another build may read the entry at the same time
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Deletes the entries that were used least recently, until the cache is not larger
+     * than its maximum size.
+     */
+    public void evict() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        if (size <= maxSize) {
+            return;
+        }
+
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (size <= maxSize) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                size -= length;
+            }
+        }
+    }
+
+    private File getFile(String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                name.append(String.format("%02x", b));
+            }
+            return new File(directory, name.toString());
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform implements SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
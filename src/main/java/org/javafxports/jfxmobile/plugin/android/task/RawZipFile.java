@@ -0,0 +1,332 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2018, Gluon Software
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.javafxports.jfxmobile.plugin.android.task;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Random access to the entries of a zip file through its central directory.
+ * Unlike {@link java.util.zip.ZipFile}, this gives access to the compressed
+ * data of an entry, so that it can be copied into another archive without
+ * being inflated and deflated again.
+ */
+class RawZipFile implements Closeable {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EXTRA_FIELD_ID = 0x0001;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE = 56;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    private final File mFile;
+    private final FileChannel mChannel;
+    private final List<Entry> mEntries;
+
+    RawZipFile(File file) throws IOException {
+        mFile = file;
+        mChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            mEntries = readCentralDirectory();
+        } catch (IOException | RuntimeException e) {
+            mChannel.close();
+            throw e;
+        }
+    }
+
+    /** Returns the entries in the order of the central directory. */
+    List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    FileChannel getChannel() {
+        return mChannel;
+    }
+
+    /** Returns the offset in the file of the compressed data of an entry. */
+    long getDataOffset(Entry entry) throws IOException {
+        ByteBuffer header = read(entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("Invalid local header for " + entry.name + " in " + mFile);
+        }
+        int nameLength = header.getShort(26) & 0xffff;
+        int extraLength = header.getShort(28) & 0xffff;
+        return entry.localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+    }
+
+    /** Returns a stream of the data of an entry as it is stored in the file. */
+    InputStream openRaw(Entry entry) throws IOException {
+        return new ChannelInputStream(mChannel, getDataOffset(entry), entry.compressedSize);
+    }
+
+    /** Returns a stream of the uncompressed data of an entry. */
+    InputStream open(Entry entry) throws IOException {
+        InputStream raw = openRaw(entry);
+        switch (entry.method) {
+            case ZipEntry.STORED:
+                return raw;
+            case ZipEntry.DEFLATED:
+                return new EntryInflaterInputStream(raw);
+            default:
+                raw.close();
+                throw new ZipException("Unsupported compression method " + entry.method
+                        + " for " + entry.name + " in " + mFile);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+
+    private List<Entry> readCentralDirectory() throws IOException {
+        long fileSize = mChannel.size();
+        int tailSize = (int) Math.min(fileSize, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = read(fileSize - tailSize, tailSize);
+
+        int eocd = -1;
+        for (int i = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd == -1) {
+            throw new ZipException("No end of central directory found in " + mFile);
+        }
+
+        long count = tail.getShort(eocd + 10) & 0xffff;
+        long size = tail.getInt(eocd + 12) & 0xffffffffL;
+        long offset = tail.getInt(eocd + 16) & 0xffffffffL;
+
+        // a Zip64 archive has its actual values in the Zip64 end of central directory record,
+        // which the locator right before the end of central directory points to
+        long locator = fileSize - tailSize + eocd - ZIP64_LOCATOR_SIZE;
+        if (locator >= 0 && read(locator, 4).getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+            ByteBuffer record = read(read(locator, ZIP64_LOCATOR_SIZE).getLong(8), ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE);
+            if (record.getInt(0) != ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                throw new ZipException("Invalid Zip64 end of central directory in " + mFile);
+            }
+            count = record.getLong(32);
+            size = record.getLong(40);
+            offset = record.getLong(48);
+        }
+        if (size > Integer.MAX_VALUE || count > size / CENTRAL_HEADER_SIZE) {
+            throw new ZipException("Invalid central directory in " + mFile);
+        }
+
+        ByteBuffer directory = read(offset, (int) size);
+        List<Entry> entries = new ArrayList<>((int) count);
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            if (directory.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("Invalid central directory in " + mFile);
+            }
+            int nameLength = directory.getShort(position + 28) & 0xffff;
+            int extraLength = directory.getShort(position + 30) & 0xffff;
+            int commentLength = directory.getShort(position + 32) & 0xffff;
+
+            byte[] name = new byte[nameLength];
+            directory.position(position + CENTRAL_HEADER_SIZE);
+            directory.get(name);
+
+            long compressedSize = directory.getInt(position + 20) & 0xffffffffL;
+            long uncompressedSize = directory.getInt(position + 24) & 0xffffffffL;
+            long localHeaderOffset = directory.getInt(position + 42) & 0xffffffffL;
+
+            // the values that do not fit in 32 bits are in the Zip64 extra field, in this order
+            int extra = position + CENTRAL_HEADER_SIZE + nameLength;
+            int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                int id = directory.getShort(extra) & 0xffff;
+                int dataSize = directory.getShort(extra + 2) & 0xffff;
+                if (id == ZIP64_EXTRA_FIELD_ID) {
+                    int field = extra + 4;
+                    if (uncompressedSize == 0xffffffffL) {
+                        uncompressedSize = directory.getLong(field);
+                        field += 8;
+                    }
+                    if (compressedSize == 0xffffffffL) {
+                        compressedSize = directory.getLong(field);
+                        field += 8;
+                    }
+                    if (localHeaderOffset == 0xffffffffL) {
+                        localHeaderOffset = directory.getLong(field);
+                    }
+                    break;
+                }
+                extra += 4 + dataSize;
+            }
+
+            entries.add(new Entry(
+                    new String(name, StandardCharsets.UTF_8),
+                    directory.getShort(position + 10) & 0xffff,
+                    (directory.getShort(position + 14) & 0xffffL) << 16 | (directory.getShort(position + 12) & 0xffffL),
+                    directory.getInt(position + 16) & 0xffffffffL,
+                    compressedSize,
+                    uncompressedSize,
+                    localHeaderOffset));
+
+            position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        return Collections.unmodifiableList(entries);
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (mChannel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of " + mFile);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    static final class Entry {
+        final String name;
+        final int method;
+        final long dosTime;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final long localHeaderOffset;
+
+        private Entry(String name, int method, long dosTime, long crc, long compressedSize,
+                long size, long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    }
+
+    /**
+     * Inflates the raw data of an entry. Like the stream of {@link java.util.zip.ZipFile},
+     * it feeds a dummy byte at the end of the input, which the inflater needs in nowrap mode.
+     */
+    private static final class EntryInflaterInputStream extends InflaterInputStream {
+        private boolean mEof;
+
+        EntryInflaterInputStream(InputStream raw) {
+            super(raw, new Inflater(true), 8192);
+        }
+
+        @Override
+        protected void fill() throws IOException {
+            if (mEof) {
+                throw new EOFException("Unexpected end of ZLIB input stream");
+            }
+            len = in.read(buf, 0, buf.length);
+            if (len == -1) {
+                buf[0] = 0;
+                len = 1;
+                mEof = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            inf.end();
+        }
+    }
+
+    /** Reads a range of a channel without moving its position, so that several entries can be read at once. */
+    private static final class ChannelInputStream extends InputStream {
+        private final FileChannel mChannel;
+        private long mPosition;
+        private long mRemaining;
+
+        ChannelInputStream(FileChannel channel, long position, long length) {
+            mChannel = channel;
+            mPosition = position;
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int count = mChannel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, mRemaining)), mPosition);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            mPosition += count;
+            mRemaining -= count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(mRemaining, Integer.MAX_VALUE);
+        }
+    }
+}
@@ -38,10 +38,13 @@ import org.gradle.api.tasks.InputFiles;
 import org.gradle.api.tasks.Optional;
 import org.gradle.api.tasks.OutputDirectory;
 import org.gradle.api.tasks.TaskAction;
+import org.gradle.api.tasks.incremental.IncrementalTaskInputs;
+import org.gradle.workers.WorkerExecutor;
 import org.javafxports.jfxmobile.plugin.RetrobufferExec;
 
+import javax.inject.Inject;
 import java.io.File;
-import java.util.Collections;
+import java.util.Arrays;
 
 public class Retrobuffer extends DefaultTask {
 
@@ -52,9 +55,20 @@ public class Retrobuffer extends DefaultTask {
     @InputDirectory
     private File retrobufferInput;
 
+    @InputFiles
+    @Optional
+    private FileCollection inputJars;
+
     @OutputDirectory
     private File retrobufferOutput;
 
+    private final WorkerExecutor workerExecutor;
+
+    @Inject
+    public Retrobuffer(WorkerExecutor workerExecutor) {
+        this.workerExecutor = workerExecutor;
+    }
+
     public FileCollection getClasspath() {
         return classpath;
     }
@@ -71,6 +85,14 @@ public class Retrobuffer extends DefaultTask {
         this.retrobufferInput = retrobufferInput;
     }
 
+    public FileCollection getInputJars() {
+        return inputJars;
+    }
+
+    public void setInputJars(FileCollection inputJars) {
+        this.inputJars = inputJars;
+    }
+
     public File getRetrobufferOutput() {
         return retrobufferOutput;
     }
@@ -80,9 +102,18 @@ public class Retrobuffer extends DefaultTask {
     }
 
     @TaskAction
-    public void action() {
-        RetrobufferExec exec = new RetrobufferExec(getProject());
+    public void action(IncrementalTaskInputs inputs) {
+        // kept in the temporary directory, everything in the output directory is passed on to retrolambda
+        File manifestFile = new File(getTemporaryDir(), "manifest");
+        if (!inputs.isIncremental()) {
+            // outputs of a previous run can not be trusted, start over from an empty output directory
+            getProject().delete(getRetrobufferOutput(), manifestFile);
+            getRetrobufferOutput().mkdirs();
+        }
+
+        RetrobufferExec exec = new RetrobufferExec(getProject(), workerExecutor);
         exec.setInputDir(getRetrobufferInput());
+        exec.setInputJars(getInputJars());
         exec.setOutputDir(getRetrobufferOutput());
 
         if (getClasspath() == null || getClasspath().isEmpty()) {
@@ -91,7 +122,13 @@ public class Retrobuffer extends DefaultTask {
             exec.setRetrobufferClasspath(getProject().files(getRetrobufferInput(), getClasspath()));
         }
 
-        exec.setJvmArgs(Collections.emptyList());
+        int threads = getProject().getGradle().getStartParameter().getMaxWorkerCount();
+        exec.setJvmArgs(Arrays.asList(
+                "-Dretrobuffer.threads=" + threads,
+                "-Dretrobuffer.incremental=true",
+                "-Dretrobuffer.manifestFile=" + manifestFile,
+                "-Dretrobuffer.streaming=true"
+        ));
         exec.exec();
     }
 
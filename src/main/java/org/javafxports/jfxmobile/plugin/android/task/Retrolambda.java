@@ -38,10 +38,23 @@ import org.gradle.api.tasks.InputFiles;
 import org.gradle.api.tasks.Optional;
 import org.gradle.api.tasks.OutputDirectory;
 import org.gradle.api.tasks.TaskAction;
+import org.gradle.api.tasks.incremental.IncrementalTaskInputs;
+import org.gradle.workers.WorkerExecutor;
 import org.javafxports.jfxmobile.plugin.RetrolambdaExec;
 
+import javax.inject.Inject;
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Applies retrolambda on the provided input and outputs to the provided output
@@ -58,6 +71,13 @@ public class Retrolambda extends DefaultTask {
     @OutputDirectory
     private File retrolambdaOutput;
 
+    private final WorkerExecutor workerExecutor;
+
+    @Inject
+    public Retrolambda(WorkerExecutor workerExecutor) {
+        this.workerExecutor = workerExecutor;
+    }
+
     public FileCollection getClasspath() {
         return classpath;
     }
@@ -83,10 +103,52 @@ public class Retrolambda extends DefaultTask {
     }
 
     @TaskAction
-    public void action() {
-        RetrolambdaExec exec = new RetrolambdaExec(getProject());
+    public void action(IncrementalTaskInputs inputs) {
+        Path inputDir = getRetrolambdaInput().toPath();
+
+        Set<File> changed = new LinkedHashSet<>();
+        Set<File> removed = new LinkedHashSet<>();
+        boolean incremental = inputs.isIncremental();
+        if (incremental) {
+            List<File> classpathChanges = new ArrayList<>();
+            inputs.outOfDate(details -> {
+                if (details.getFile().toPath().startsWith(inputDir)) {
+                    changed.add(details.getFile());
+                } else {
+                    classpathChanges.add(details.getFile());
+                }
+            });
+            inputs.removed(details -> {
+                if (details.getFile().toPath().startsWith(inputDir)) {
+                    removed.add(details.getFile());
+                } else {
+                    classpathChanges.add(details.getFile());
+                }
+            });
+            // the classpath is used to analyze every input class, so all of them must be processed again
+            incremental = classpathChanges.isEmpty();
+        }
+
+        Set<File> includedFiles = null;
+        if (incremental) {
+            includedFiles = collectIncludedFiles(inputDir, changed, removed);
+            getLogger().info("Retrolambda processes " + includedFiles.size() + " files, " + removed.size() + " input files were removed");
+        } else {
+            // outputs of a previous run can not be trusted, start over from an empty output directory
+            getProject().delete(getRetrolambdaOutput());
+            getRetrolambdaOutput().mkdirs();
+        }
+
+        if (includedFiles != null && includedFiles.isEmpty()) {
+            return;
+        }
+
+        RetrolambdaExec exec = new RetrolambdaExec(getProject(), workerExecutor);
         exec.setInputDir(getRetrolambdaInput());
         exec.setOutputDir(getRetrolambdaOutput());
+        if (includedFiles != null) {
+            exec.setIncludedFiles(getProject().files(includedFiles));
+        }
 
         exec.setBytecodeVersion(50);
 
@@ -101,4 +163,70 @@ public class Retrolambda extends DefaultTask {
         exec.setJvmArgs(Collections.emptyList());
         exec.exec();
     }
+
+    /**
+     * Returns the input files that must be processed again, and deletes the
+     * outputs that retrolambda generated for them or for removed input files.
+     * <p>
+     * Retrolambda only analyzes the files that it processes, while the output
+     * of a class with default methods enabled depends on its supertypes and on
+     * the interfaces that it invokes. So besides the changed classes, all the
+     * subtypes of changed and removed classes are processed again, and the
+     * input types that any processed class depends on are processed as well,
+     * which writes them again unchanged.
+     */
+    private Set<File> collectIncludedFiles(Path inputDir, Set<File> changed, Set<File> removed) {
+        ClassHierarchy hierarchy = ClassHierarchy.read(inputDir);
+
+        Set<File> includedFiles = new LinkedHashSet<>();
+        List<String> changedClasses = new ArrayList<>();
+        for (File file : changed) {
+            if (!ClassHierarchy.isClass(file)) {
+                includedFiles.add(file);
+            } else {
+                changedClasses.add(ClassHierarchy.className(inputDir, file));
+            }
+        }
+        for (File file : removed) {
+            if (ClassHierarchy.isClass(file)) {
+                changedClasses.add(ClassHierarchy.className(inputDir, file));
+            }
+            deleteOutputs(inputDir, file);
+        }
+
+        for (String name : hierarchy.withDependencies(hierarchy.withSubtypes(changedClasses))) {
+            File file = hierarchy.getFile(name);
+            deleteOutputs(inputDir, file);
+            includedFiles.add(file);
+        }
+        return includedFiles;
+    }
+
+    /**
+     * Deletes the output of an input file, together with the lambda classes
+     * and the interface companion class that retrolambda generated for it.
+     */
+    private void deleteOutputs(Path inputDir, File inputFile) {
+        Path output = getRetrolambdaOutput().toPath().resolve(inputDir.relativize(inputFile.toPath()));
+        try {
+            Files.deleteIfExists(output);
+            if (!ClassHierarchy.isClass(inputFile) || !Files.isDirectory(output.getParent())) {
+                return;
+            }
+            String baseName = output.getFileName().toString();
+            baseName = baseName.substring(0, baseName.length() - ".class".length());
+            String companion = baseName + "$.class";
+            String lambdaPrefix = baseName + "$$Lambda$";
+            try (Stream<Path> siblings = Files.list(output.getParent())) {
+                for (Path sibling : siblings.collect(Collectors.toList())) {
+                    String fileName = sibling.getFileName().toString();
+                    if (fileName.equals(companion) || fileName.startsWith(lambdaPrefix)) {
+                        Files.delete(sibling);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 }
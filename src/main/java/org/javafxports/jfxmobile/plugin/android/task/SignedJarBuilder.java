@@ -16,40 +16,36 @@
 
 package org.javafxports.jfxmobile.plugin.android.task;
 
-import com.android.SdkConstants;
-
 import com.android.sdklib.internal.build.SignedJarBuilder.IZipEntryFilter;
 
-import sun.security.pkcs.ContentInfo;
-import sun.security.pkcs.PKCS7;
-import sun.security.pkcs.SignerInfo;
-import sun.security.x509.AlgorithmId;
-import sun.security.x509.X500Name;
-
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FilterOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.PrintStream;
-import java.security.DigestOutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
-import java.security.Signature;
-import java.security.SignatureException;
 import java.security.cert.X509Certificate;
-import java.util.Base64;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.jar.Attributes;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
-import java.util.jar.Manifest;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -60,55 +56,45 @@ import java.util.zip.ZipInputStream;
  */
 @Deprecated
 public class SignedJarBuilder {
-    private static final String DIGEST_ALGORITHM = "SHA1";
-    private static final String DIGEST_ATTR = "SHA1-Digest";
-    private static final String DIGEST_MANIFEST_ATTR = "SHA1-Digest-Manifest";
+    /** An index is not reused once the removed entries waste more than this, or a quarter of the archive. */
+    private static final long MAX_WASTED_BYTES = 1024 * 1024;
 
-    /** Write to another stream and also feed it to the Signature object. */
-    private static class SignatureOutputStream extends FilterOutputStream {
-        private Signature mSignature;
-        private int mCount = 0;
+    /** Stored files and copied entries from this size are moved by the file system rather than read. */
+    private static final long TRANSFER_THRESHOLD = 256 * 1024;
 
-        public SignatureOutputStream(OutputStream out, Signature sig) {
-            super(out);
-            mSignature = sig;
-        }
+    private ZipWriter mOutputJar;
+    private JarSignatureScheme mSchemeV1;
+    private ApkSignatureSchemeV2 mSchemeV2;
+    private MessageDigest mMessageDigest;
 
-        @Override
-        public void write(int b) throws IOException {
-            try {
-                mSignature.update((byte) b);
-            } catch (SignatureException e) {
-                throw new IOException("SignatureException: " + e);
-            }
-            super.write(b);
-            mCount++;
-        }
+    private byte[] mBuffer = new byte[4096];
 
-        @Override
-        public void write(byte[] b, int off, int len) throws IOException {
-            try {
-                mSignature.update(b, off, len);
-            } catch (SignatureException e) {
-                throw new IOException("SignatureException: " + e);
-            }
-            super.write(b, off, len);
-            mCount += len;
-        }
+    private CompressionPolicy mCompressionPolicy = CompressionPolicy.DEFAULT;
 
-        public int size() {
-            return mCount;
-        }
-    }
+    private ExecutorService mExecutor;
+    private int mMaxPending;
+    private final Deque<Future<DeflatedFile>> mPending = new ArrayDeque<>();
 
-    private JarOutputStream mOutputJar;
-    private PrivateKey mKey;
-    private X509Certificate mCertificate;
-    private Manifest mManifest;
-    private Base64.Encoder mBase64Encoder;
-    private MessageDigest mMessageDigest;
+    private File mOutputFile;
+    private File mIndexFile;
+    private String mConfiguration;
+    private ApkIndex mPreviousIndex;
+    private final Map<String, String> mFingerprints = new HashMap<>();
 
-    private byte[] mBuffer = new byte[4096];
+    private PackagingCache mCache;
+
+    /** A file that was compressed, possibly on the executor, waiting to be written. */
+    private static final class DeflatedFile {
+        final String name;
+        final ZipWriter.CompressedEntry entry;
+        final byte[] digest;
+
+        DeflatedFile(String name, ZipWriter.CompressedEntry entry, byte[] digest) {
+            this.name = name;
+            this.entry = entry;
+            this.digest = digest;
+        }
+    }
 
     /**
      * Creates a {@link SignedJarBuilder} with a given output stream, and signing information.
@@ -123,19 +109,163 @@ public class SignedJarBuilder {
      */
     public SignedJarBuilder(OutputStream out, PrivateKey key, X509Certificate certificate)
             throws IOException, NoSuchAlgorithmException {
-        mOutputJar = new JarOutputStream(new BufferedOutputStream(out));
-        mOutputJar.setLevel(9);
-        mKey = key;
-        mCertificate = certificate;
+        this(out, key, certificate, 1, true, false);
+    }
+
+    /**
+     * Creates a {@link SignedJarBuilder} with a given output stream, and signing information.
+     * <p>If either <code>key</code> or <code>certificate</code> is <code>null</code> then
+     * the archive will not be signed.
+     * @param out the {@link OutputStream} where to write the Jar archive.
+     * @param key the {@link PrivateKey} used to sign the archive, or <code>null</code>.
+     * @param certificate the {@link X509Certificate} used to sign the archive, or
+     * <code>null</code>.
+     * @param minSdkVersion the minimum API level of the archive. The JAR signature uses
+     *                      SHA-256 from API level 18, and SHA-1 before.
+     * @param v1SigningEnabled whether the archive is signed with the JAR signature scheme.
+     * @param v2SigningEnabled whether the archive is signed with the APK Signature Scheme v2.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public SignedJarBuilder(OutputStream out, PrivateKey key, X509Certificate certificate,
+            int minSdkVersion, boolean v1SigningEnabled, boolean v2SigningEnabled)
+            throws IOException, NoSuchAlgorithmException {
+        initSchemes(key, certificate, minSdkVersion, v1SigningEnabled, v2SigningEnabled);
+        mOutputJar = new ZipWriter(out, mCompressionPolicy.getLevel(), mSchemeV2);
+    }
+
+    /**
+     * Creates a {@link SignedJarBuilder} that updates a Jar archive in place when possible.
+     * <p>The index file records where each entry of the archive is, and which file it was
+     * written from. If it matches the archive and the signing information, the entries whose
+     * source did not change are kept where they are and only the others are written, after
+     * them. Otherwise, or once the entries that were removed waste too much space, the
+     * archive is written again from scratch.
+     * <p>If either <code>key</code> or <code>certificate</code> is <code>null</code> then
+     * the archive will not be signed.
+     * @param outputFile the Jar archive to create or update.
+     * @param indexFile the index of the archive, written when the archive is closed.
+     * @param key the {@link PrivateKey} used to sign the archive, or <code>null</code>.
+     * @param certificate the {@link X509Certificate} used to sign the archive, or
+     * <code>null</code>.
+     * @param minSdkVersion the minimum API level of the archive. The JAR signature uses
+     *                      SHA-256 from API level 18, and SHA-1 before.
+     * @param v1SigningEnabled whether the archive is signed with the JAR signature scheme.
+     * @param v2SigningEnabled whether the archive is signed with the APK Signature Scheme v2.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public SignedJarBuilder(File outputFile, File indexFile, PrivateKey key, X509Certificate certificate,
+            int minSdkVersion, boolean v1SigningEnabled, boolean v2SigningEnabled)
+            throws IOException, NoSuchAlgorithmException {
+        initSchemes(key, certificate, minSdkVersion, v1SigningEnabled, v2SigningEnabled);
+        mOutputFile = outputFile;
+        mIndexFile = indexFile;
+        mConfiguration = getConfiguration(certificate);
+
+        ApkIndex index = ApkIndex.read(indexFile);
+        // an archive that is not closed properly is written from scratch next time
+        indexFile.delete();
+        if (index != null && index.isValidFor(outputFile, mConfiguration)
+                && index.getWastedBytes() <= Math.max(MAX_WASTED_BYTES, index.getApkLength() / 4)) {
+            FileChannel channel = FileChannel.open(outputFile.toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            try {
+                mOutputJar = new ZipWriter(channel, index.getAppendOffset(), index.getHoles(),
+                        mCompressionPolicy.getLevel(), mSchemeV2);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            if (mSchemeV2 != null) {
+                mSchemeV2.setPreviousChunkDigests(index.getChunkDigests());
+            }
+            mPreviousIndex = index;
+        } else {
+            mOutputJar = new ZipWriter(new FileOutputStream(outputFile, false /* append */),
+                    mCompressionPolicy.getLevel(), mSchemeV2);
+        }
+    }
 
-        if (mKey != null && mCertificate != null) {
-            mManifest = new Manifest();
-            Attributes main = mManifest.getMainAttributes();
-            main.putValue("Manifest-Version", "1.0");
-            main.putValue("Created-By", "1.0 (Android)");
+    private void initSchemes(PrivateKey key, X509Certificate certificate, int minSdkVersion,
+            boolean v1SigningEnabled, boolean v2SigningEnabled) throws NoSuchAlgorithmException {
+        boolean signed = key != null && certificate != null;
+        if (signed && v2SigningEnabled) {
+            mSchemeV2 = new ApkSignatureSchemeV2(key, certificate);
+        }
+        if (signed && v1SigningEnabled) {
+            mSchemeV1 = new JarSignatureScheme(key, certificate, minSdkVersion, mSchemeV2 != null);
+            mMessageDigest = mSchemeV1.createDigest();
+        }
+    }
 
-            mBase64Encoder = Base64.getMimeEncoder();
-            mMessageDigest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+    /**
+     * Returns a description of how the archive is signed. The index of an archive that was
+     * signed differently cannot be reused.
+     */
+    private String getConfiguration(X509Certificate certificate) throws IOException, NoSuchAlgorithmException {
+        StringBuilder configuration = new StringBuilder();
+        configuration.append("v1=").append(getDigestAlgorithm());
+        configuration.append(";v2=").append(mSchemeV2 != null);
+        if (certificate != null) {
+            try {
+                byte[] hash = MessageDigest.getInstance("SHA-256").digest(certificate.getEncoded());
+                configuration.append(";certificate=");
+                for (byte b : hash) {
+                    configuration.append(String.format("%02x", b));
+                }
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Failed to read the certificate", e);
+            }
+        }
+        return configuration.toString();
+    }
+
+    /**
+     * Sets how the entries that are added after this call are compressed. The compressed
+     * data of the entries copied by {@link #writeZip(File, IZipEntryFilter)} is kept as is,
+     * unless the policy stores them.
+     * @param compressionPolicy the compression policy.
+     * @throws IOException
+     */
+    public void setCompressionPolicy(CompressionPolicy compressionPolicy) throws IOException {
+        // the files that are being compressed keep the previous policy
+        writeAllPending();
+
+        mCompressionPolicy = compressionPolicy;
+        mOutputJar.setLevel(compressionPolicy.getLevel());
+        mOutputJar.setStoreIfNotSmaller(compressionPolicy.isStoreIfNotSmaller());
+    }
+
+    /**
+     * Sets the cache from which the compressed data and digests of the entries are reused.
+     * The files added with {@link #writeFile(File, String)} are cached with their compressed
+     * data, the entries copied by {@link #writeZip(File, IZipEntryFilter)} with their digest.
+     * @param cache the cache, or <code>null</code>.
+     */
+    public void setCache(PackagingCache cache) {
+        mCache = cache;
+    }
+
+    /**
+     * Sets the number of threads used to compress the files added with
+     * {@link #writeFile(File, String)}. The compressed files are still written in the order
+     * in which they were added, so the archive is the same as with a single thread.
+     * @param threads the number of threads, 1 to compress the files while they are added.
+     */
+    public void setThreadCount(int threads) {
+        if (mExecutor != null || threads <= 1) {
+            return;
+        }
+
+        mExecutor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "SignedJarBuilder compression");
+            thread.setDaemon(true);
+            return thread;
+        });
+        mMaxPending = threads * 2;
+        if (mSchemeV2 != null) {
+            mSchemeV2.setExecutor(mExecutor, mMaxPending);
         }
     }
 
@@ -146,18 +276,34 @@ public class SignedJarBuilder {
      * @throws IOException
      */
     public void writeFile(File inputFile, String jarPath) throws IOException {
-        // Get an input stream on the file.
-        FileInputStream fis = new FileInputStream(inputFile);
-        try {
+        boolean compress = !mCompressionPolicy.isStored(jarPath);
+        String fingerprint = "file:" + inputFile.getAbsolutePath() + ":" + inputFile.length() + ":"
+                + inputFile.lastModified() + ":" + compress + ":" + mCompressionPolicy.getLevel() + ":"
+                + mCompressionPolicy.isStoreIfNotSmaller();
+        if (keepEntry(jarPath, fingerprint)) {
+            return;
+        }
 
-            // create the zip entry
-            JarEntry entry = new JarEntry(jarPath);
-            entry.setTime(inputFile.lastModified());
+        String cacheKey = mCache != null ? fingerprint + ":" + getDigestAlgorithm() : null;
+        long length = inputFile.length();
+        if (!compress && length >= TRANSFER_THRESHOLD && length <= Integer.MAX_VALUE) {
+            writeStoredFile(inputFile, jarPath, cacheKey);
+            return;
+        }
 
-            writeEntry(fis, entry);
-        } finally {
-            // close the file stream used to read the file
-            fis.close();
+        if (mExecutor != null) {
+            mPending.addLast(mExecutor.submit(() -> deflateFile(inputFile, jarPath, compress, cacheKey)));
+            // keep a bounded number of compressed files in memory
+            while (mPending.size() > mMaxPending) {
+                writePending();
+            }
+            return;
+        }
+
+        try {
+            writeDeflated(deflateFile(inputFile, jarPath, compress, cacheKey));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
         }
     }
 
@@ -165,6 +311,9 @@ public class SignedJarBuilder {
      * Copies the content of a Jar/Zip archive into the receiver archive.
      * <p>An optional {@link IZipEntryFilter} allows to selectively choose which files
      * to copy over.
+     * <p>This reads the entries through {@link ZipInputStream}, which inflates and
+     * deflates them again. Use {@link #writeZip(File, IZipEntryFilter)} to copy the
+     * entries of an archive on disk without recompressing them.
      * @param input the {@link InputStream} for the Jar/Zip to copy.
      * @param filter the filter or <code>null</code>
      * @throws IOException
@@ -173,6 +322,7 @@ public class SignedJarBuilder {
      */
     public void writeZip(InputStream input, IZipEntryFilter filter)
             throws IOException, IZipEntryFilter.ZipAbortException {
+        writeAllPending();
         ZipInputStream zis = new ZipInputStream(input);
 
         try {
@@ -182,56 +332,113 @@ public class SignedJarBuilder {
                 String name = entry.getName();
 
                 // do not take directories or anything inside a potential META-INF folder.
-                if (entry.isDirectory()) {
+                if (entry.isDirectory() || !checkEntry(name, filter)) {
                     continue;
                 }
 
-                // ignore some of the content in META-INF/ but not all
-                if (name.startsWith("META-INF/")) {
-                    // ignore the manifest file.
-                    String subName = name.substring(9);
-                    if ("MANIFEST.MF".equals(subName)) {
-                        continue;
-                    }
+                // Preserve the STORED method of the input entry.
+                boolean compress = entry.getMethod() != ZipEntry.STORED
+                        && !mCompressionPolicy.isStored(name);
+                writeEntry(zis, name, entry.getTime(), compress);
 
-                    // special case for Maven meta-data because we really don't care about them in apks.
-                    if (name.startsWith("META-INF/maven/")) {
-                        continue;
-                    }
+                zis.closeEntry();
+            }
+        } finally {
+            zis.close();
+        }
+    }
 
+    /**
+     * Copies the content of a Jar/Zip archive into the receiver archive.
+     * <p>The compressed data of every entry is copied as is, together with its CRC and
+     * sizes, from the location that the central directory of the archive points to.
+     * The entries are only inflated when the archive is signed, to compute their digest.
+     * <p>An optional {@link IZipEntryFilter} allows to selectively choose which files
+     * to copy over.
+     * @param input the Jar/Zip file to copy.
+     * @param filter the filter or <code>null</code>
+     * @throws IOException
+     * @throws IZipEntryFilter.ZipAbortException if the {@link IZipEntryFilter} filter indicated that the write
+     *                           must be aborted.
+     */
+    public void writeZip(File input, IZipEntryFilter filter)
+            throws IOException, IZipEntryFilter.ZipAbortException {
+        writeAllPending();
+        try (RawZipFile zip = new RawZipFile(input)) {
+            for (RawZipFile.Entry entry : zip.getEntries()) {
+                // do not take directories or anything inside a potential META-INF folder.
+                if (entry.isDirectory() || !checkEntry(entry.name, filter)) {
+                    continue;
+                }
 
-                    // check for subfolder
-                    int index = subName.indexOf('/');
-                    if (index == -1) {
-                        // no sub folder, ignores signature files.
-                        if (subName.endsWith(".SF") || name.endsWith(".RSA") || name.endsWith(".DSA")) {
-                            continue;
-                        }
-                    }
+                if (entry.method != ZipEntry.STORED && entry.method != ZipEntry.DEFLATED) {
+                    throw new IOException("Unsupported compression method " + entry.method
+                            + " for " + entry.name + " in " + input);
                 }
 
-                // if we have a filter, we check the entry against it
-                if (filter != null && filter.checkEntry(name) == false) {
+                boolean store = entry.method == ZipEntry.DEFLATED && mCompressionPolicy.isStored(entry.name);
+                String fingerprint = "zip:" + entry.crc + ":" + entry.compressedSize + ":" + entry.size
+                        + ":" + entry.method + ":" + entry.dosTime + ":" + store;
+                if (keepEntry(entry.name, fingerprint)) {
                     continue;
                 }
 
-                JarEntry newEntry;
+                if (store) {
+                    try (InputStream in = zip.open(entry)) {
+                        writeEntry(in, entry.name, ZipWriter.fromDosTime(entry.dosTime), false);
+                    }
+                    continue;
+                }
 
-                // Preserve the STORED method of the input entry.
-                if (entry.getMethod() == JarEntry.STORED) {
-                    newEntry = new JarEntry(entry);
+                if (entry.compressedSize >= TRANSFER_THRESHOLD) {
+                    mOutputJar.writeRawEntry(entry.name, entry.dosTime, entry.method, entry.crc,
+                            entry.compressedSize, entry.size, zip.getChannel(), zip.getDataOffset(entry));
                 } else {
-                    // Create a new entry so that the compressed len is recomputed.
-                    newEntry = new JarEntry(name);
+                    try (InputStream raw = zip.openRaw(entry)) {
+                        mOutputJar.writeRawEntry(entry.name, entry.dosTime, entry.method, entry.crc,
+                                entry.compressedSize, entry.size, raw);
+                    }
                 }
 
-                writeEntry(zis, newEntry);
+                if (mSchemeV1 != null) {
+                    updateManifest(entry.name, digestEntry(zip, entry, fingerprint));
+                }
+            }
+        }
+    }
 
-                zis.closeEntry();
+    /**
+     * Returns whether an entry of an archive that is copied must be added to the
+     * receiver archive.
+     */
+    static boolean checkEntry(String name, IZipEntryFilter filter)
+            throws IZipEntryFilter.ZipAbortException {
+        // ignore some of the content in META-INF/ but not all
+        if (name.startsWith("META-INF/")) {
+            // ignore the manifest file.
+            String subName = name.substring(9);
+            if ("MANIFEST.MF".equals(subName)) {
+                return false;
+            }
+
+            // special case for Maven meta-data because we really don't care about them in apks.
+            if (name.startsWith("META-INF/maven/")) {
+                return false;
+            }
+
+
+            // check for subfolder
+            int index = subName.indexOf('/');
+            if (index == -1) {
+                // no sub folder, ignores signature files.
+                if (subName.endsWith(".SF") || name.endsWith(".RSA") || name.endsWith(".DSA")) {
+                    return false;
+                }
             }
-        } finally {
-            zis.close();
         }
+
+        // if we have a filter, we check the entry against it
+        return filter == null || filter.checkEntry(name);
     }
 
     /**
@@ -240,30 +447,69 @@ public class SignedJarBuilder {
      * @throws GeneralSecurityException
      */
     public void close() throws IOException, GeneralSecurityException {
-        if (mManifest != null) {
-            // write the manifest to the jar file
-            mOutputJar.putNextEntry(new JarEntry(JarFile.MANIFEST_NAME));
-            mManifest.write(mOutputJar);
-
-            // CERT.SF
-            Signature signature = Signature.getInstance("SHA1with" + mKey.getAlgorithm());
-            signature.initSign(mKey);
-            mOutputJar.putNextEntry(new JarEntry("META-INF/CERT.SF"));
-            SignatureOutputStream out = new SignatureOutputStream(mOutputJar, signature);
-            writeSignatureFile(out);
-
-            // CERT.*
-            mOutputJar.putNextEntry(new JarEntry("META-INF/CERT." + mKey.getAlgorithm()));
-            writeSignatureBlock(signature, mCertificate, mKey);
-
-            // close out at the end because it can also close mOutputJar.
-            // (there's some timing issue here I think, because it's worked before with out
-            // being closed after writing CERT.SF).
-            out.close();
-        }
-
-        mOutputJar.close();
-        mOutputJar = null;
+        writeAllPending();
+
+        if (mSchemeV1 != null) {
+            long time = System.currentTimeMillis();
+            for (Map.Entry<String, byte[]> file : mSchemeV1.sign().entrySet()) {
+                mOutputJar.writeEntry(file.getKey(), time, new ByteArrayInputStream(file.getValue()),
+                        true, null);
+            }
+        }
+
+        // the executor also digests the APK for the v2 signature
+        try {
+            mOutputJar.close();
+            if (mIndexFile != null) {
+                writeIndex();
+            }
+            mOutputJar = null;
+        } finally {
+            shutdownExecutor();
+        }
+    }
+
+    /**
+     * Keeps an entry of the archive that is updated when its source did not change.
+     * @param name the path of the entry in the archive.
+     * @param fingerprint describes the source of the entry and how it is compressed.
+     * @return whether the entry was kept, otherwise it must be written.
+     */
+    private boolean keepEntry(String name, String fingerprint) {
+        mFingerprints.put(name, fingerprint);
+        if (mPreviousIndex == null) {
+            return false;
+        }
+
+        ApkIndex.Entry entry = mPreviousIndex.getEntry(name);
+        if (entry == null || !entry.fingerprint.equals(fingerprint)
+                || (mSchemeV1 != null && entry.digest == null)) {
+            return false;
+        }
+
+        mOutputJar.keepEntry(name, entry.dosTime, entry.method, entry.crc, entry.compressedSize,
+                entry.size, entry.localHeaderOffset, entry.recordLength);
+        if (mSchemeV1 != null) {
+            updateManifest(name, entry.digest);
+        }
+        return true;
+    }
+
+    /** Writes the index of the archive, once it is closed. */
+    private void writeIndex() throws IOException {
+        List<ApkIndex.Entry> entries = new ArrayList<>();
+        for (ZipWriter.CentralEntry entry : mOutputJar.getEntries()) {
+            String name = entry.toString();
+            // the signature files are written again every time
+            String fingerprint = mFingerprints.getOrDefault(name, "");
+            byte[] digest = mSchemeV1 != null ? mSchemeV1.getDigest(name) : null;
+            entries.add(new ApkIndex.Entry(name, fingerprint, entry.method, entry.dosTime, entry.crc,
+                    entry.compressedSize, entry.size, entry.localHeaderOffset, entry.recordLength, digest));
+        }
+        List<byte[]> chunkDigests = mSchemeV2 != null
+                ? mSchemeV2.getEntryChunkDigests() : Collections.<byte[]>emptyList();
+        new ApkIndex(mConfiguration, mOutputFile, entries, mOutputJar.getHoles(), chunkDigests)
+                .write(mIndexFile);
     }
 
     /**
@@ -271,9 +517,15 @@ public class SignedJarBuilder {
      * This does nothing if {@link #close()} was called successfully.
      */
     public void cleanUp() {
+        for (Future<DeflatedFile> future : mPending) {
+            future.cancel(true);
+        }
+        mPending.clear();
+        shutdownExecutor();
+
         if (mOutputJar != null) {
             try {
-                mOutputJar.close();
+                mOutputJar.abort();
             } catch (IOException e) {
                 // pass
             }
@@ -283,101 +535,162 @@ public class SignedJarBuilder {
     /**
      * Adds an entry to the output jar, and write its content from the {@link InputStream}
      * @param input The input stream from where to write the entry content.
-     * @param entry the entry to write in the jar.
+     * @param name the path of the entry in the jar.
+     * @param time the modification time of the entry.
+     * @param compress whether the entry is deflated or stored.
      * @throws IOException
      */
-    private void writeEntry(InputStream input, JarEntry entry) throws IOException {
-        // add the entry to the jar archive
-        mOutputJar.putNextEntry(entry);
+    private void writeEntry(InputStream input, String name, long time, boolean compress)
+            throws IOException {
+        // add the entry to the jar archive, updating the digest with its content
+        mOutputJar.writeEntry(name, time, input, compress, mSchemeV1 != null ? mMessageDigest : null);
 
-        // read the content of the entry from the input stream, and write it into the archive.
-        int count;
-        while ((count = input.read(mBuffer)) != -1) {
-            mOutputJar.write(mBuffer, 0, count);
+        if (mSchemeV1 != null) {
+            updateManifest(name, mMessageDigest.digest());
+        }
+    }
 
-            // update the digest
-            if (mMessageDigest != null) {
-                mMessageDigest.update(mBuffer, 0, count);
+    /**
+     * Writes a large file that is stored. The CRC and the digest are taken from the cache,
+     * or computed from the mapped file, and the file system then moves the data into the
+     * archive.
+     */
+    private void writeStoredFile(File inputFile, String name, String cacheKey) throws IOException {
+        // the entries are written in the order in which they are added
+        writeAllPending();
+
+        try (FileChannel channel = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ)) {
+            PackagingCache.Entry stored = null;
+            if (cacheKey != null) {
+                // only the CRC and the digest are cached, the data is in the file anyway
+                stored = mCache.get(cacheKey, () -> digestStoredFile(channel));
+            }
+            if (stored == null || (mSchemeV1 != null && stored.digest == null)) {
+                stored = digestStoredFile(channel);
+            }
+
+            mOutputJar.writeStoredEntry(name, inputFile.lastModified(), stored.crc, channel);
+
+            if (mSchemeV1 != null) {
+                updateManifest(name, stored.digest);
             }
         }
+    }
 
-        // close the entry for this file
-        mOutputJar.closeEntry();
+    private PackagingCache.Entry digestStoredFile(FileChannel channel) throws IOException {
+        MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        CRC32 crc = new CRC32();
+        crc.update(data.duplicate());
+        byte[] digest = null;
+        if (mSchemeV1 != null) {
+            mMessageDigest.update(data.duplicate());
+            digest = mMessageDigest.digest();
+        }
+        return new PackagingCache.Entry(ZipEntry.STORED, crc.getValue(), channel.size(), digest, null);
+    }
 
-        if (mManifest != null) {
-            // update the manifest for this entry.
-            Attributes attr = mManifest.getAttributes(entry.getName());
-            if (attr == null) {
-                attr = new Attributes();
-                mManifest.getEntries().put(entry.getName(), attr);
+    /**
+     * Returns the digest of an entry of an archive that is copied, from the cache if
+     * possible. The uncompressed data only goes to the digest.
+     */
+    private byte[] digestEntry(RawZipFile zip, RawZipFile.Entry entry, String fingerprint)
+            throws IOException {
+        if (mCache == null) {
+            return digestEntry(zip, entry);
+        }
+
+        // identical entries of different archives share their digest
+        String cacheKey = fingerprint + ":" + entry.name + ":" + getDigestAlgorithm();
+        PackagingCache.Entry cached = mCache.get(cacheKey, () -> new PackagingCache.Entry(
+                entry.method, entry.crc, entry.size, digestEntry(zip, entry), null));
+        return cached.digest != null ? cached.digest : digestEntry(zip, entry);
+    }
+
+    private byte[] digestEntry(RawZipFile zip, RawZipFile.Entry entry) throws IOException {
+        try (InputStream in = zip.open(entry)) {
+            int count;
+            while ((count = in.read(mBuffer)) != -1) {
+                mMessageDigest.update(mBuffer, 0, count);
             }
-            attr.putValue(DIGEST_ATTR, mBase64Encoder.encodeToString(mMessageDigest.digest()));
         }
+        return mMessageDigest.digest();
     }
 
-    /** Writes a .SF file with a digest to the manifest. */
-    private void writeSignatureFile(SignatureOutputStream out)
-            throws IOException, GeneralSecurityException {
-        Manifest sf = new Manifest();
-        Attributes main = sf.getMainAttributes();
-        main.putValue("Signature-Version", "1.0");
-        main.putValue("Created-By", "1.0 (Android)");
-
-        Base64.Encoder base64 = Base64.getMimeEncoder();
-        MessageDigest md = MessageDigest.getInstance(DIGEST_ALGORITHM);
-        PrintStream print = new PrintStream(
-                new DigestOutputStream(new ByteArrayOutputStream(), md),
-                true, SdkConstants.UTF_8);
-
-        // Digest of the entire manifest
-        mManifest.write(print);
-        print.flush();
-        main.putValue(DIGEST_MANIFEST_ATTR, base64.encodeToString(md.digest()));
-
-        Map<String, Attributes> entries = mManifest.getEntries();
-        for (Map.Entry<String, Attributes> entry : entries.entrySet()) {
-            // Digest of the manifest stanza for this entry.
-            print.print("Name: " + entry.getKey() + "\r\n");
-            for (Map.Entry<Object, Object> att : entry.getValue().entrySet()) {
-                print.print(att.getKey() + ": " + att.getValue() + "\r\n");
+    /**
+     * Reads and compresses a file, possibly on the executor, unless it is cached. Each file
+     * has its own digest, since several files are compressed at the same time.
+     */
+    private DeflatedFile deflateFile(File inputFile, String name, boolean compress, String cacheKey)
+            throws IOException, NoSuchAlgorithmException {
+        if (cacheKey != null) {
+            PackagingCache.Entry cached = mCache.get(cacheKey, () -> {
+                DeflatedFile file = deflateFile(inputFile, name, compress);
+                return new PackagingCache.Entry(file.entry.getMethod(), file.entry.getCrc(),
+                        file.entry.getSize(), file.digest, file.entry.getData());
+            });
+            if (cached.data != null && (mSchemeV1 == null || cached.digest != null)) {
+                return new DeflatedFile(name, new ZipWriter.CompressedEntry(name, inputFile.lastModified(),
+                        cached.method, cached.crc, cached.size, cached.data), cached.digest);
             }
-            print.print("\r\n");
-            print.flush();
+        }
+        return deflateFile(inputFile, name, compress);
+    }
 
-            Attributes sfAttr = new Attributes();
-            sfAttr.putValue(DIGEST_ATTR, base64.encodeToString(md.digest()));
-            sf.getEntries().put(entry.getKey(), sfAttr);
+    private DeflatedFile deflateFile(File inputFile, String name, boolean compress)
+            throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = mSchemeV1 != null ? mSchemeV1.createDigest() : null;
+        try (FileInputStream fis = new FileInputStream(inputFile)) {
+            ZipWriter.CompressedEntry entry = mOutputJar.compress(name, inputFile.lastModified(),
+                    fis, compress, digest);
+            return new DeflatedFile(name, entry, digest != null ? digest.digest() : null);
         }
+    }
 
-        sf.write(out);
+    /** Returns the digest algorithm of the JAR signature, which the cached digests depend on. */
+    private String getDigestAlgorithm() {
+        return mSchemeV1 != null ? mMessageDigest.getAlgorithm() : "none";
+    }
+
+    /** Waits for the oldest file that is compressed on the executor, and writes it. */
+    private void writePending() throws IOException {
+        DeflatedFile file;
+        try {
+            file = mPending.removeFirst().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing files");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        writeDeflated(file);
+    }
+
+    private void writeDeflated(DeflatedFile file) throws IOException {
+        mOutputJar.writeEntry(file.entry);
+        if (mSchemeV1 != null) {
+            updateManifest(file.name, file.digest);
+        }
+    }
+
+    /** Writes all the files that were added before an archive is copied or the jar is closed. */
+    private void writeAllPending() throws IOException {
+        while (!mPending.isEmpty()) {
+            writePending();
+        }
+    }
 
-        // A bug in the java.util.jar implementation of Android platforms
-        // up to version 1.6 will cause a spurious IOException to be thrown
-        // if the length of the signature file is a multiple of 1024 bytes.
-        // As a workaround, add an extra CRLF in this case.
-        if ((out.size() % 1024) == 0) {
-            out.write('\r');
-            out.write('\n');
+    private void shutdownExecutor() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
         }
     }
 
-    /** Write the certificate file with a digital signature. */
-    private void writeSignatureBlock(Signature signature, X509Certificate publicKey,
-            PrivateKey privateKey)
-            throws IOException, GeneralSecurityException {
-        SignerInfo signerInfo = new SignerInfo(
-                new X500Name(publicKey.getIssuerX500Principal().getName()),
-                publicKey.getSerialNumber(),
-                AlgorithmId.get(DIGEST_ALGORITHM),
-                AlgorithmId.get(privateKey.getAlgorithm()),
-                signature.sign());
-
-        PKCS7 pkcs7 = new PKCS7(
-                new AlgorithmId[] { AlgorithmId.get(DIGEST_ALGORITHM) },
-                new ContentInfo(ContentInfo.DATA_OID, null),
-                new X509Certificate[] { publicKey },
-                new SignerInfo[] { signerInfo });
-
-        pkcs7.encodeSignedData(mOutputJar);
+    /** Adds the digest of an entry to the manifest. */
+    private void updateManifest(String name, byte[] digest) {
+        mSchemeV1.addEntry(name, digest);
     }
 }
@@ -0,0 +1,758 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2018, Gluon Software
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.javafxports.jfxmobile.plugin.android.task;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a zip archive entry by entry. Unlike {@link java.util.zip.ZipOutputStream},
+ * it can also write the compressed data of an entry that was read from another
+ * archive as is, given its CRC and sizes.
+ * <p>
+ * The data of new entries is compressed in memory before it is written, so
+ * that the CRC and sizes are always known when the local header is written and
+ * no data descriptors are needed. {@link #compress} can be called from several
+ * threads at once, each call borrowing a {@link Deflater} from a pool, while the
+ * resulting entries are written in order by a single thread.
+ * <p>
+ * The data of stored entries is aligned as zipalign does, by padding the extra field
+ * of their local header: on 4 bytes, or on 4096 bytes for shared libraries so that
+ * they can be mapped directly from the APK.
+ * <p>
+ * An existing archive can also be updated in place: the entries that did not change
+ * are kept where they are with {@link #keepEntry}, the new entries are appended after
+ * them, and the space left by the entries that were removed is filled with virtual
+ * entries, local headers with an empty name that the central directory does not
+ * reference.
+ * <p>
+ * Large data that is already in a file, such as native libraries that are stored, is
+ * moved from its file with {@link FileChannel#transferTo} rather than copied through the
+ * Java heap.
+ */
+class ZipWriter implements Closeable {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+
+    private static final int VERSION_STORED = 10;
+    private static final int VERSION_DEFLATED = 20;
+    private static final int FLAG_UTF8 = 0x0800;
+
+    private static final int ALIGNMENT = 4;
+    private static final int NATIVE_LIBRARY_ALIGNMENT = 4096;
+
+    private static final int MAX_EXTRA_LENGTH = 0xffff;
+
+    private final OutputStream mOut;
+    /** Writes after the data buffered by {@link #mOut}, once it is flushed, without digesting it. */
+    private final WritableByteChannel mDataChannel;
+    private final ApkSignatureSchemeV2 mSchemeV2;
+    private long mPosition = 0;
+    private final List<CentralEntry> mEntries = new ArrayList<>();
+
+    private final FileChannel mChannel;
+    private final long mAppendOffset;
+    private final List<long[]> mPreviousHoles;
+    private List<long[]> mHoles = Collections.emptyList();
+
+    private volatile int mLevel;
+    private volatile boolean mStoreIfNotSmaller = false;
+    private final Queue<Compressor> mCompressors = new ConcurrentLinkedQueue<>();
+    private final byte[] mBuffer = new byte[8192];
+
+    /**
+     * @param out the stream to write the archive to
+     * @param level the level used to compress new entries
+     */
+    ZipWriter(OutputStream out, int level) {
+        this(out, level, null);
+    }
+
+    /**
+     * @param out the stream to write the archive to
+     * @param level the level used to compress new entries
+     * @param schemeV2 if not <code>null</code>, signs the archive with the APK Signature Scheme v2
+     */
+    ZipWriter(OutputStream out, int level, ApkSignatureSchemeV2 schemeV2) {
+        mSchemeV2 = schemeV2;
+        mOut = new BufferedOutputStream(schemeV2 != null ? schemeV2.digestEntries(out) : out, 65536);
+        mDataChannel = out instanceof FileOutputStream
+                ? ((FileOutputStream) out).getChannel() : Channels.newChannel(out);
+        mLevel = level;
+        mChannel = null;
+        mAppendOffset = 0;
+        mPreviousHoles = Collections.emptyList();
+    }
+
+    /**
+     * Updates an existing archive in place. The entries that are kept must be declared
+     * with {@link #keepEntry}, the new entries are written from the given offset.
+     * @param channel the channel of the archive, opened for reading and writing
+     * @param appendOffset the offset from which the new entries are written, after all
+     *                     the entries that may be kept
+     * @param previousHoles the offset and length of the virtual entries of the archive
+     * @param level the level used to compress new entries
+     * @param schemeV2 if not <code>null</code>, signs the archive with the APK Signature Scheme v2
+     */
+    ZipWriter(FileChannel channel, long appendOffset, List<long[]> previousHoles, int level,
+            ApkSignatureSchemeV2 schemeV2) throws IOException {
+        mChannel = channel;
+        mAppendOffset = appendOffset;
+        mPreviousHoles = previousHoles;
+        mSchemeV2 = schemeV2;
+        mLevel = level;
+
+        channel.position(appendOffset);
+        mOut = new BufferedOutputStream(Channels.newOutputStream(channel), 65536);
+        mDataChannel = channel;
+        mPosition = appendOffset;
+    }
+
+    /**
+     * Sets the level used to compress the entries, from the next call to {@link #compress}.
+     */
+    void setLevel(int level) {
+        mLevel = level;
+    }
+
+    /**
+     * Sets whether an entry that does not get smaller when deflated is stored instead,
+     * from the next call to {@link #compress}.
+     */
+    void setStoreIfNotSmaller(boolean storeIfNotSmaller) {
+        mStoreIfNotSmaller = storeIfNotSmaller;
+    }
+
+    /**
+     * Writes a new entry with the data of the given stream.
+     * @param name the path of the entry in the archive
+     * @param time the modification time of the entry, in milliseconds since the epoch
+     * @param input the uncompressed data of the entry
+     * @param compress whether the data is deflated or stored
+     * @param digest if not <code>null</code>, the digest is updated with the uncompressed data
+     */
+    void writeEntry(String name, long time, InputStream input, boolean compress,
+            MessageDigest digest) throws IOException {
+        writeEntry(compress(name, time, input, compress, digest));
+    }
+
+    /**
+     * Reads and compresses the data of a new entry, without writing it yet.
+     * This method is thread safe.
+     * @param name the path of the entry in the archive
+     * @param time the modification time of the entry, in milliseconds since the epoch
+     * @param input the uncompressed data of the entry
+     * @param compress whether the data is deflated or stored
+     * @param digest if not <code>null</code>, the digest is updated with the uncompressed data
+     * @return the entry to pass to {@link #writeEntry(CompressedEntry)}
+     */
+    CompressedEntry compress(String name, long time, InputStream input, boolean compress,
+            MessageDigest digest) throws IOException {
+        Compressor compressor = mCompressors.poll();
+        if (compressor == null) {
+            compressor = new Compressor(mLevel);
+        }
+        try {
+            return compressor.compress(name, time, input, compress, mLevel, mStoreIfNotSmaller, digest);
+        } finally {
+            mCompressors.offer(compressor);
+        }
+    }
+
+    /** Writes an entry returned by {@link #compress}. */
+    void writeEntry(CompressedEntry entry) throws IOException {
+        writeLocalHeader(entry.header);
+        mOut.write(entry.data, 0, entry.length);
+        mPosition += entry.length;
+        entry.header.recordLength = mPosition - entry.header.localHeaderOffset;
+    }
+
+    /**
+     * Writes an entry with data that is already compressed, typically read from
+     * another archive with {@link RawZipFile#openRaw}.
+     */
+    void writeRawEntry(String name, long dosTime, int method, long crc, long compressedSize,
+            long size, InputStream raw) throws IOException {
+        CentralEntry entry = new CentralEntry(name, method, dosTime, crc, compressedSize, size);
+        writeLocalHeader(entry);
+
+        long remaining = compressedSize;
+        while (remaining > 0) {
+            int count = raw.read(mBuffer, 0, (int) Math.min(mBuffer.length, remaining));
+            if (count == -1) {
+                throw new ZipException("Unexpected end of data for " + name);
+            }
+            mOut.write(mBuffer, 0, count);
+            remaining -= count;
+        }
+        mPosition += compressedSize;
+        entry.recordLength = mPosition - entry.localHeaderOffset;
+    }
+
+    /**
+     * Writes a new stored entry with the data of a file, moving the data from the file
+     * rather than reading it.
+     * @param name the path of the entry in the archive
+     * @param time the modification time of the entry, in milliseconds since the epoch
+     * @param crc the CRC of the data
+     * @param source the channel of the file
+     */
+    void writeStoredEntry(String name, long time, long crc, FileChannel source) throws IOException {
+        long size = source.size();
+        CentralEntry entry = new CentralEntry(name, ZipEntry.STORED, toDosTime(time), crc, size, size);
+        writeLocalHeader(entry);
+        transferData(source, 0, size);
+        entry.recordLength = mPosition - entry.localHeaderOffset;
+    }
+
+    /**
+     * Writes an entry with data that is already compressed, moving the data from the
+     * archive it is read from rather than reading it.
+     * @param source the channel of the archive, typically {@link RawZipFile#getChannel()}
+     * @param dataOffset the offset of the compressed data in the archive
+     */
+    void writeRawEntry(String name, long dosTime, int method, long crc, long compressedSize,
+            long size, FileChannel source, long dataOffset) throws IOException {
+        CentralEntry entry = new CentralEntry(name, method, dosTime, crc, compressedSize, size);
+        writeLocalHeader(entry);
+        transferData(source, dataOffset, compressedSize);
+        entry.recordLength = mPosition - entry.localHeaderOffset;
+    }
+
+    private void transferData(FileChannel source, long position, long size) throws IOException {
+        mOut.flush();
+        if (mSchemeV2 != null && mChannel == null) {
+            // the data is digested in the order in which it is written
+            MappedByteBuffer data = source.map(FileChannel.MapMode.READ_ONLY, position, size);
+            mSchemeV2.digestEntryData(data.duplicate());
+            while (data.hasRemaining()) {
+                mDataChannel.write(data);
+            }
+        } else {
+            long transferred = 0;
+            while (transferred < size) {
+                long count = source.transferTo(position + transferred, size - transferred, mDataChannel);
+                if (count <= 0) {
+                    throw new EOFException("Unexpected end of data at offset " + (position + transferred));
+                }
+                transferred += count;
+            }
+        }
+        mPosition += size;
+    }
+
+    /**
+     * Keeps an entry of the archive that is updated, with its local header and data
+     * where they are.
+     * @param recordLength the length of the local header and data of the entry
+     */
+    void keepEntry(String name, long dosTime, int method, long crc, long compressedSize,
+            long size, long localHeaderOffset, long recordLength) {
+        CentralEntry entry = new CentralEntry(name, method, dosTime, crc, compressedSize, size);
+        entry.localHeaderOffset = localHeaderOffset;
+        entry.recordLength = recordLength;
+        mEntries.add(entry);
+    }
+
+    /** Returns the entries of the archive, once it is closed. */
+    List<CentralEntry> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * Returns the offset and length of the virtual entries that fill the space between
+     * the entries of an archive that was updated, once it is closed.
+     */
+    List<long[]> getHoles() {
+        return mHoles;
+    }
+
+    /**
+     * Writes the central directory, preceded by the APK Signing Block when the APK is
+     * signed with the v2 scheme, and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (mEntries.size() > 0xffff) {
+                throw new ZipException("Too many entries for a zip archive without Zip64: " + mEntries.size());
+            }
+
+            long unchangedLength = mPosition;
+            if (mChannel != null) {
+                mOut.flush();
+                // the central directory lists the entries in the order of the archive
+                mEntries.sort(Comparator.comparingLong(entry -> entry.localHeaderOffset));
+                unchangedLength = fillHoles();
+            }
+
+            long directoryOffset = mPosition;
+            ByteArrayOutputStream directory = new ByteArrayOutputStream(mEntries.size() * (CENTRAL_HEADER_SIZE + 32));
+            for (CentralEntry entry : mEntries) {
+                ByteBuffer header = ByteBuffer.allocate(CENTRAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(CENTRAL_HEADER_SIGNATURE);
+                header.putShort((short) VERSION_DEFLATED);
+                header.putShort((short) entry.versionNeeded());
+                header.putShort((short) entry.flags());
+                header.putShort((short) entry.method);
+                header.putInt((int) entry.dosTime);
+                header.putInt((int) entry.crc);
+                header.putInt((int) entry.compressedSize);
+                header.putInt((int) entry.size);
+                header.putShort((short) entry.name.length);
+                header.putShort((short) 0); // extra length
+                header.putShort((short) 0); // comment length
+                header.putShort((short) 0); // disk number
+                header.putShort((short) 0); // internal attributes
+                header.putInt(0); // external attributes
+                header.putInt((int) entry.localHeaderOffset);
+                directory.write(header.array());
+                directory.write(entry.name);
+            }
+            byte[] centralDirectory = directory.toByteArray();
+
+            byte[] signingBlock = new byte[0];
+            if (mSchemeV2 != null) {
+                mOut.flush();
+                if (mChannel != null) {
+                    mSchemeV2.digestEntries(mChannel, directoryOffset, unchangedLength);
+                }
+                signingBlock = mSchemeV2.createSigningBlock(centralDirectory,
+                        endOfCentralDirectory(centralDirectory.length, directoryOffset));
+            }
+            write(signingBlock);
+            write(centralDirectory);
+            write(endOfCentralDirectory(centralDirectory.length, directoryOffset + signingBlock.length));
+
+            if (mChannel != null) {
+                // the previous archive may have been longer
+                mOut.flush();
+                mChannel.truncate(mPosition);
+            }
+        } finally {
+            mOut.close();
+            endCompressors();
+        }
+    }
+
+    /**
+     * Writes virtual entries in the space between the entries that were kept, before
+     * the new entries.
+     * @return the length from the start of the archive that was not written to
+     */
+    private long fillHoles() throws IOException {
+        mHoles = new ArrayList<>();
+        long offset = 0;
+        for (CentralEntry entry : mEntries) {
+            if (entry.localHeaderOffset >= mAppendOffset) {
+                break;
+            }
+            if (entry.localHeaderOffset > offset) {
+                mHoles.add(new long[] { offset, entry.localHeaderOffset - offset });
+            }
+            offset = entry.localHeaderOffset + entry.recordLength;
+        }
+        if (offset < mAppendOffset) {
+            mHoles.add(new long[] { offset, mAppendOffset - offset });
+        }
+
+        long unchangedLength = mAppendOffset;
+        for (long[] hole : mHoles) {
+            if (containsHole(mPreviousHoles, hole)) {
+                // the same virtual entries are already there
+                continue;
+            }
+            unchangedLength = Math.min(unchangedLength, hole[0]);
+            writeVirtualEntries(hole[0], hole[1]);
+        }
+        return unchangedLength;
+    }
+
+    private static boolean containsHole(List<long[]> holes, long[] hole) {
+        for (long[] other : holes) {
+            if (other[0] == hole[0] && other[1] == hole[1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Fills a range of the archive with local headers that have an empty name, padded
+     * with their extra field.
+     */
+    private void writeVirtualEntries(long offset, long length) throws IOException {
+        if (length < LOCAL_HEADER_SIZE) {
+            throw new ZipException("Cannot fill a gap of " + length + " bytes at offset " + offset);
+        }
+
+        ByteBuffer zeros = ByteBuffer.allocate(MAX_EXTRA_LENGTH);
+        while (length > 0) {
+            long entryLength = Math.min(length, LOCAL_HEADER_SIZE + MAX_EXTRA_LENGTH);
+            if (length - entryLength > 0 && length - entryLength < LOCAL_HEADER_SIZE) {
+                // leave enough space for the last virtual entry
+                entryLength = length - LOCAL_HEADER_SIZE;
+            }
+            int extraLength = (int) (entryLength - LOCAL_HEADER_SIZE);
+
+            ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(LOCAL_HEADER_SIGNATURE);
+            header.putShort((short) VERSION_STORED);
+            header.putShort((short) 0); // flags
+            header.putShort((short) ZipEntry.STORED);
+            header.putInt(0); // time
+            header.putInt(0); // crc
+            header.putInt(0); // compressed size
+            header.putInt(0); // size
+            header.putShort((short) 0); // name length
+            header.putShort((short) extraLength);
+            header.flip();
+            writeFully(header, offset);
+
+            zeros.clear().limit(extraLength);
+            writeFully(zeros, offset + LOCAL_HEADER_SIZE);
+
+            offset += entryLength;
+            length -= entryLength;
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            offset += mChannel.write(buffer, offset);
+        }
+    }
+
+    /**
+     * Closes the underlying stream without writing the central directory, when the
+     * archive is not completed because of an error.
+     */
+    void abort() throws IOException {
+        try {
+            mOut.close();
+        } finally {
+            endCompressors();
+        }
+    }
+
+    private byte[] endOfCentralDirectory(long directorySize, long directoryOffset) throws ZipException {
+        if (directoryOffset > 0xffffffffL) {
+            throw new ZipException("Archive too large for a zip archive without Zip64");
+        }
+
+        ByteBuffer end = ByteBuffer.allocate(END_OF_CENTRAL_DIRECTORY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        end.putInt(END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+        end.putShort((short) 0); // disk number
+        end.putShort((short) 0); // disk with the central directory
+        end.putShort((short) mEntries.size());
+        end.putShort((short) mEntries.size());
+        end.putInt((int) directorySize);
+        end.putInt((int) directoryOffset);
+        end.putShort((short) 0); // comment length
+        return end.array();
+    }
+
+    private void endCompressors() {
+        Compressor compressor;
+        while ((compressor = mCompressors.poll()) != null) {
+            compressor.end();
+        }
+    }
+
+    private void writeLocalHeader(CentralEntry entry) throws IOException {
+        if (entry.compressedSize > 0xffffffffL || entry.size > 0xffffffffL || mPosition > 0xffffffffL) {
+            throw new ZipException("Entry too large for a zip archive without Zip64: " + entry);
+        }
+        entry.localHeaderOffset = mPosition;
+        mEntries.add(entry);
+
+        int padding = 0;
+        if (entry.method == ZipEntry.STORED) {
+            int alignment = entry.toString().endsWith(".so") ? NATIVE_LIBRARY_ALIGNMENT : ALIGNMENT;
+            long dataOffset = mPosition + LOCAL_HEADER_SIZE + entry.name.length;
+            padding = (int) ((alignment - dataOffset % alignment) % alignment);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(LOCAL_HEADER_SIGNATURE);
+        header.putShort((short) entry.versionNeeded());
+        header.putShort((short) entry.flags());
+        header.putShort((short) entry.method);
+        header.putInt((int) entry.dosTime);
+        header.putInt((int) entry.crc);
+        header.putInt((int) entry.compressedSize);
+        header.putInt((int) entry.size);
+        header.putShort((short) entry.name.length);
+        header.putShort((short) padding); // extra length
+        write(header.array());
+        write(entry.name);
+        write(new byte[padding]);
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        mOut.write(bytes);
+        mPosition += bytes.length;
+    }
+
+    /** Converts the MS-DOS date and time of a zip entry to a Java time. */
+    static long fromDosTime(long dosTime) {
+        LocalDateTime date;
+        try {
+            date = LocalDateTime.of(
+                    (int) ((dosTime >> 25) & 0x7f) + 1980,
+                    (int) ((dosTime >> 21) & 0x0f),
+                    (int) ((dosTime >> 16) & 0x1f),
+                    (int) ((dosTime >> 11) & 0x1f),
+                    (int) ((dosTime >> 5) & 0x3f),
+                    (int) ((dosTime << 1) & 0x3e));
+        } catch (DateTimeException e) {
+            // some tools write a zero date
+            date = LocalDateTime.of(1980, 1, 1, 0, 0);
+        }
+        return date.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /** Converts a Java time to the MS-DOS date and time format of zip archives. */
+    static long toDosTime(long time) {
+        LocalDateTime date = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+        if (date.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (date.getYear() - 1980L) << 25
+                | (long) date.getMonthValue() << 21
+                | (long) date.getDayOfMonth() << 16
+                | (long) date.getHour() << 11
+                | (long) date.getMinute() << 5
+                | (long) date.getSecond() >> 1;
+    }
+
+    /** The compressed data of a new entry, with its header. */
+    static final class CompressedEntry {
+        private final CentralEntry header;
+        private final byte[] data;
+        private final int length;
+
+        private CompressedEntry(CentralEntry header, byte[] data, int length) {
+            this.header = header;
+            this.data = data;
+            this.length = length;
+        }
+
+        /**
+         * Creates an entry from data that was compressed before, typically by a previous
+         * build.
+         * @param name the path of the entry in the archive
+         * @param time the modification time of the entry, in milliseconds since the epoch
+         * @param method the compression method of the data
+         * @param crc the CRC of the uncompressed data
+         * @param size the size of the uncompressed data
+         * @param data the compressed data
+         */
+        CompressedEntry(String name, long time, int method, long crc, long size, byte[] data) {
+            this(new CentralEntry(name, method, toDosTime(time), crc, data.length, size), data, data.length);
+        }
+
+        int getMethod() {
+            return header.method;
+        }
+
+        long getCrc() {
+            return header.crc;
+        }
+
+        long getSize() {
+            return header.size;
+        }
+
+        /** Returns a copy of the compressed data. */
+        byte[] getData() {
+            return Arrays.copyOf(data, length);
+        }
+    }
+
+    /** Gives access to the buffer of the compressed data, to write it without a copy. */
+    private static final class Buffer extends ByteArrayOutputStream {
+        Buffer() {
+            super(8192);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    /** A {@link Deflater} and the buffers used with it, used by one thread at a time. */
+    private static final class Compressor {
+        private Deflater mDeflater;
+        private int mLevel;
+        private final CRC32 mCrc = new CRC32();
+        private final byte[] mBuffer = new byte[8192];
+        private final byte[] mDeflateBuffer = new byte[8192];
+
+        Compressor(int level) {
+            mDeflater = new Deflater(level, true);
+            mLevel = level;
+        }
+
+        CompressedEntry compress(String name, long time, InputStream input, boolean compress,
+                int level, boolean storeIfNotSmaller, MessageDigest digest) throws IOException {
+            mCrc.reset();
+            if (level != mLevel) {
+                // Deflater.setLevel() only applies to the input given after the next deflate()
+                mDeflater.end();
+                mDeflater = new Deflater(level, true);
+                mLevel = level;
+            } else {
+                mDeflater.reset();
+            }
+
+            Buffer data = new Buffer();
+            // the uncompressed data is only kept in case it is smaller
+            Buffer stored = compress && storeIfNotSmaller ? new Buffer() : null;
+            long size = 0;
+            int count;
+            while ((count = input.read(mBuffer)) != -1) {
+                mCrc.update(mBuffer, 0, count);
+                if (digest != null) {
+                    digest.update(mBuffer, 0, count);
+                }
+                size += count;
+
+                if (compress) {
+                    mDeflater.setInput(mBuffer, 0, count);
+                    while (!mDeflater.needsInput()) {
+                        deflate(data);
+                    }
+                    if (stored != null) {
+                        stored.write(mBuffer, 0, count);
+                    }
+                } else {
+                    data.write(mBuffer, 0, count);
+                }
+            }
+            if (compress) {
+                mDeflater.finish();
+                while (!mDeflater.finished()) {
+                    deflate(data);
+                }
+                if (stored != null && data.size() >= size) {
+                    compress = false;
+                    data = stored;
+                }
+            }
+
+            CentralEntry header = new CentralEntry(name, compress ? ZipEntry.DEFLATED : ZipEntry.STORED,
+                    toDosTime(time), mCrc.getValue(), data.size(), size);
+            return new CompressedEntry(header, data.array(), data.size());
+        }
+
+        private void deflate(ByteArrayOutputStream data) {
+            int count = mDeflater.deflate(mDeflateBuffer);
+            data.write(mDeflateBuffer, 0, count);
+        }
+
+        void end() {
+            mDeflater.end();
+        }
+    }
+
+    /** An entry of the central directory. */
+    static final class CentralEntry {
+        final byte[] name;
+        final boolean utf8;
+        final int method;
+        final long dosTime;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        long localHeaderOffset;
+        long recordLength;
+
+        CentralEntry(String name, int method, long dosTime, long crc, long compressedSize, long size) {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            this.utf8 = this.name.length != name.length();
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+        }
+
+        int versionNeeded() {
+            return method == ZipEntry.STORED ? VERSION_STORED : VERSION_DEFLATED;
+        }
+
+        int flags() {
+            return utf8 ? FLAG_UTF8 : 0;
+        }
+
+        @Override
+        public String toString() {
+            return new String(name, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -46,8 +46,10 @@ public class ClassAnalyzer {
 
     public void analyze(byte[] bytecode) {
         ClassReader cr = new ClassReader(bytecode);
-        ClassInfo c = new ClassInfo(cr);
+        add(new ClassInfo(cr));
+    }
 
+    public void add(ClassInfo c) {
         classes.put(c.getType(), c);
     }
 
@@ -53,22 +53,21 @@ public abstract class ClasspathVisitor extends SimpleFileVisitor<Path> {
     @Override
     public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
         Path relativePath = baseDir.relativize(file);
-        byte[] content = Files.readAllBytes(file);
 
         if (isJavaClass(relativePath)) {
-            visitClass(relativePath, content);
+            visitClass(relativePath, file, Files.readAllBytes(file));
         } else {
-            visitResource(relativePath, content);
+            visitResource(relativePath, file);
         }
 
         return FileVisitResult.CONTINUE;
     }
 
-    protected abstract void visitClass(Path relativePath, byte[] bytecode) throws IOException;
+    protected abstract void visitClass(Path relativePath, Path file, byte[] bytecode) throws IOException;
 
-    protected abstract void visitResource(Path relativePath, byte[] bytecode) throws IOException;
+    protected abstract void visitResource(Path relativePath, Path file) throws IOException;
 
-    private static boolean isJavaClass(Path file) {
+    static boolean isJavaClass(Path file) {
         String fileName = file.getFileName().toString();
         return fileName.endsWith(".class") && !fileName.equals("module-info.class");
     }
@@ -0,0 +1,170 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2018, Gluon Software
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.javafxports.retrobuffer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * A minimal, read-only view on the constant pool of a class file. It only
+ * records the offsets of the constant pool entries, which makes it a lot
+ * cheaper than a {@link org.objectweb.asm.ClassReader} when all we want to
+ * know is whether a class needs to be transformed at all.
+ */
+public class ConstantPool {
+
+    private static final int UTF8 = 1;
+    private static final int INTEGER = 3;
+    private static final int FLOAT = 4;
+    private static final int LONG = 5;
+    private static final int DOUBLE = 6;
+    private static final int CLASS = 7;
+    private static final int STRING = 8;
+    private static final int FIELDREF = 9;
+    private static final int METHODREF = 10;
+    private static final int INTERFACE_METHODREF = 11;
+    private static final int NAME_AND_TYPE = 12;
+    private static final int METHOD_HANDLE = 15;
+    private static final int METHOD_TYPE = 16;
+    private static final int DYNAMIC = 17;
+    private static final int INVOKE_DYNAMIC = 18;
+    private static final int MODULE = 19;
+    private static final int PACKAGE = 20;
+
+    private final byte[] b;
+    private final int[] offsets;
+    private final int end;
+
+    /**
+     * @throws IllegalArgumentException when the bytes do not start with a
+     * constant pool that can be parsed
+     */
+    public ConstantPool(byte[] bytecode) {
+        this.b = bytecode;
+        try {
+            if (readInt(0) != 0xCAFEBABE) {
+                throw new IllegalArgumentException("Not a class file");
+            }
+            int count = readUnsignedShort(8);
+            offsets = new int[count];
+            int index = 10;
+            for (int i = 1; i < count; i++) {
+                offsets[i] = index;
+                switch (b[index]) {
+                    case UTF8:
+                        index += 3 + readUnsignedShort(index + 1);
+                        break;
+                    case CLASS:
+                    case STRING:
+                    case METHOD_TYPE:
+                    case MODULE:
+                    case PACKAGE:
+                        index += 3;
+                        break;
+                    case METHOD_HANDLE:
+                        index += 4;
+                        break;
+                    case INTEGER:
+                    case FLOAT:
+                    case FIELDREF:
+                    case METHODREF:
+                    case INTERFACE_METHODREF:
+                    case NAME_AND_TYPE:
+                    case DYNAMIC:
+                    case INVOKE_DYNAMIC:
+                        index += 5;
+                        break;
+                    case LONG:
+                    case DOUBLE:
+                        index += 9;
+                        i++;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown constant pool tag " + b[index]);
+                }
+            }
+            end = index;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated class file", e);
+        }
+    }
+
+    /**
+     * Returns whether one of the given strings is present as a UTF8 constant.
+     * Every class that is referenced from the bytecode, e.g. as the owner of a
+     * method invocation, has its internal name stored as such a constant.
+     */
+    public boolean containsUtf8(Collection<String> values) {
+        int minLength = Integer.MAX_VALUE;
+        int maxLength = 0;
+        for (String value : values) {
+            minLength = Math.min(minLength, value.length());
+            maxLength = Math.max(maxLength, value.length());
+        }
+
+        for (int i = 1; i < offsets.length; i++) {
+            int offset = offsets[i];
+            if (offset == 0 || b[offset] != UTF8) {
+                continue;
+            }
+            int length = readUnsignedShort(offset + 1);
+            if (length >= minLength && length <= maxLength
+                    && values.contains(new String(b, offset + 3, length, StandardCharsets.ISO_8859_1))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getMajorVersion() {
+        return readUnsignedShort(6);
+    }
+
+    /**
+     * Returns the internal name of the class, as read from its this_class item.
+     */
+    public String getClassName() {
+        int classIndex = readUnsignedShort(end + 2);
+        int nameIndex = readUnsignedShort(offsets[classIndex] + 1);
+        int offset = offsets[nameIndex];
+        return new String(b, offset + 3, readUnsignedShort(offset + 1), StandardCharsets.UTF_8);
+    }
+
+    private int readUnsignedShort(int index) {
+        return ((b[index] & 0xFF) << 8) | (b[index + 1] & 0xFF);
+    }
+
+    private int readInt(int index) {
+        return ((b[index] & 0xFF) << 24) | ((b[index + 1] & 0xFF) << 16)
+                | ((b[index + 2] & 0xFF) << 8) | (b[index + 3] & 0xFF);
+    }
+}
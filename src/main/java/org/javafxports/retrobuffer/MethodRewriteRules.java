@@ -0,0 +1,178 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2018, Gluon Software
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.javafxports.retrobuffer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The method invocations that must be redirected to another descriptor, as
+ * listed in a rules file with one rule per line: the owner, name and
+ * descriptor of the invoked method followed by the new descriptor, separated
+ * by whitespace. Empty lines and lines starting with '#' are ignored.
+ * <p>
+ * Rules are looked up by owner and then by name, so that finding the rule for
+ * an invocation does not allocate anything.
+ */
+public class MethodRewriteRules {
+
+    private static final String DEFAULT_RULES = "buffer-methods.rules";
+
+    private static MethodRewriteRules defaultRules;
+
+    private final List<Rule> rules = new ArrayList<>();
+    private final Map<String, Map<String, Map<String, Rule>>> byOwner = new HashMap<>();
+
+    /** Returns the rules for the java.nio buffer methods that are bundled with retrobuffer. */
+    public static synchronized MethodRewriteRules getDefault() {
+        if (defaultRules == null) {
+            try (InputStream in = MethodRewriteRules.class.getResourceAsStream(DEFAULT_RULES)) {
+                if (in == null) {
+                    throw new IllegalStateException("Missing retrobuffer rules resource: " + DEFAULT_RULES);
+                }
+                defaultRules = load(in);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return defaultRules;
+    }
+
+    public static MethodRewriteRules load(InputStream in) throws IOException {
+        MethodRewriteRules result = new MethodRewriteRules();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            if (fields.length != 4) {
+                throw new IllegalArgumentException("Invalid retrobuffer rule at line " + lineNumber + ": " + line);
+            }
+            result.add(fields[0], fields[1], fields[2], fields[3]);
+        }
+        return result;
+    }
+
+    private void add(String owner, String name, String desc, String newDesc) {
+        Rule rule = new Rule(rules.size(), owner, name, desc, newDesc);
+        Rule previous = byOwner.computeIfAbsent(owner, o -> new HashMap<>())
+                .computeIfAbsent(name, n -> new HashMap<>())
+                .putIfAbsent(desc, rule);
+        if (previous != null) {
+            throw new IllegalArgumentException("Duplicate retrobuffer rule for " + rule);
+        }
+        rules.add(rule);
+    }
+
+    /**
+     * Returns the rule for an invocation of the given method, or
+     * <code>null</code> when the invocation is left as it is.
+     */
+    public Rule find(String owner, String name, String desc) {
+        Map<String, Map<String, Rule>> byName = byOwner.get(owner);
+        if (byName == null) {
+            return null;
+        }
+        Map<String, Rule> byDesc = byName.get(name);
+        return byDesc == null ? null : byDesc.get(desc);
+    }
+
+    public Set<String> getOwners() {
+        return Collections.unmodifiableSet(byOwner.keySet());
+    }
+
+    public List<Rule> getRules() {
+        return Collections.unmodifiableList(rules);
+    }
+
+    public int size() {
+        return rules.size();
+    }
+
+    public static final class Rule {
+
+        private final int index;
+        private final String owner;
+        private final String name;
+        private final String desc;
+        private final String newDesc;
+
+        private Rule(int index, String owner, String name, String desc, String newDesc) {
+            this.index = index;
+            this.owner = owner;
+            this.name = name;
+            this.desc = desc;
+            this.newDesc = newDesc;
+        }
+
+        /** Returns the position of the rule in its rules file, starting at 0. */
+        public int getIndex() {
+            return index;
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getDesc() {
+            return desc;
+        }
+
+        public String getNewDesc() {
+            return newDesc;
+        }
+
+        @Override
+        public String toString() {
+            return owner + "." + name + desc;
+        }
+    }
+}
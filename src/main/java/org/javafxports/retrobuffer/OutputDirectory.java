@@ -36,6 +36,7 @@ import org.objectweb.asm.ClassReader;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 
 public class OutputDirectory {
 
@@ -54,9 +55,23 @@ public class OutputDirectory {
         writeFile(relativePath, bytecode);
     }
 
+    public void writeClass(String className, byte[] bytecode) throws IOException {
+        writeFile(outputDir.getFileSystem().getPath(className + ".class"), bytecode);
+    }
+
     public void writeFile(Path relativePath, byte[] content) throws IOException {
-        Path outputFile = outputDir.resolve(relativePath);
+        Path outputFile = outputDir.resolve(relativePath.toString());
         Files.createDirectories(outputFile.getParent());
         Files.write(outputFile, content);
     }
+
+    public void copyClass(String className, Path source) throws IOException {
+        copyFile(outputDir.getFileSystem().getPath(className + ".class"), source);
+    }
+
+    public void copyFile(Path relativePath, Path source) throws IOException {
+        Path outputFile = outputDir.resolve(relativePath.toString());
+        Files.createDirectories(outputFile.getParent());
+        Files.copy(source, outputFile, StandardCopyOption.REPLACE_EXISTING);
+    }
 }
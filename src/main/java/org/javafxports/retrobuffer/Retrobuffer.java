@@ -31,41 +31,135 @@
  */
 package org.javafxports.retrobuffer;
 
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class Retrobuffer {
 
+    private static final Logger LOG = Logger.getLogger(Retrobuffer.class.getName());
+
     public static void run(SystemPropertiesConfig config) throws IOException {
         Path inputDir = config.getInputDir();
-        Path outputDir = config.getOutputDir();
+        List<Path> inputJars = config.getInputJars();
+        Path outputJar = config.getOutputJar();
         List<Path> classpath = config.getClasspath();
 
         Thread.currentThread().setContextClassLoader(new NonDelegatingClassLoader(asUrls(classpath)));
 
-        ClassAnalyzer analyzer = new ClassAnalyzer();
+        int threads = config.getThreads();
+        boolean streaming = config.isStreaming();
+
         Transformer transformer = new Transformer();
+        List<FileSystem> fileSystems = new ArrayList<>();
+        try {
+            // every input root is mapped to the prefix of its keys in the incremental manifest
+            Map<Path, String> roots = new LinkedHashMap<>();
+            if (inputDir != null) {
+                roots.put(inputDir, "");
+            }
+            for (Path inputJar : inputJars) {
+                FileSystem fileSystem = FileSystems.newFileSystem(inputJar, (ClassLoader) null);
+                fileSystems.add(fileSystem);
+                roots.put(fileSystem.getPath("/"), inputJar.toAbsolutePath() + "!/");
+            }
+
+            Path outputDir;
+            if (outputJar != null) {
+                if (!config.isIncremental()) {
+                    Files.deleteIfExists(outputJar);
+                }
+                Files.createDirectories(outputJar.toAbsolutePath().getParent());
+                FileSystem fileSystem = FileSystems.newFileSystem(URI.create("jar:" + outputJar.toUri()),
+                        Collections.singletonMap("create", "true"));
+                fileSystems.add(fileSystem);
+                outputDir = fileSystem.getPath("/");
+
+                // entries are stored in the order in which they are written, keep it deterministic
+                threads = 1;
+            } else {
+                outputDir = config.getOutputDir();
+            }
+
+            if (config.isIncremental() && !roots.containsKey(outputDir)) {
+                runIncremental(transformer, roots, outputDir, config.getManifestFile(), threads, streaming);
+            } else {
+                for (Path root : roots.keySet()) {
+                    boolean jar = !roots.get(root).isEmpty();
+                    if (streaming) {
+                        stream(transformer, root, outputDir, listFiles(root, jar), threads);
+                    } else if (threads > 1 || jar) {
+                        process(transformer, root, outputDir, listFiles(root, jar), threads);
+                    } else {
+                        runSequential(transformer, root, outputDir);
+                    }
+                }
+            }
+        } finally {
+            for (FileSystem fileSystem : fileSystems) {
+                fileSystem.close();
+            }
+        }
+
+        RewriteStatistics statistics = transformer.getStatistics();
+        LOG.log(Level.INFO, "Retrobuffer updated " + statistics.getTotal() + " java.nio.Buffer invocations");
+        if (statistics.getTotal() > 0) {
+            LOG.log(Level.FINE, "Updated java.nio.Buffer invocations: " + statistics);
+        }
+    }
+
+    private static void runSequential(Transformer transformer, Path inputDir, Path outputDir) throws IOException {
+        ClassAnalyzer analyzer = new ClassAnalyzer();
 
         OutputDirectory outputDirectory = new OutputDirectory(outputDir);
+        Map<String, Path> unchanged = new LinkedHashMap<>();
         Files.walkFileTree(inputDir, new ClasspathVisitor() {
             @Override
-            protected void visitClass(Path relativePath, byte[] bytecode) {
+            protected void visitClass(Path relativePath, Path file, byte[] bytecode) {
+                String passthrough = passthroughClassName(bytecode);
+                if (passthrough != null) {
+                    unchanged.put(passthrough, file);
+                    return;
+                }
                 try {
                     analyzer.analyze(bytecode);
                 } catch (IllegalArgumentException e) {
-                    throw new RuntimeException("Failed to analyze class: '" + relativePath + "'.\nClasses compiled with JDK 9 or later are currently not supported on Android. Please make sure that your project does not contain JDK 9+ dependencies.", e);
+                    throw analyzeFailure(relativePath, e);
                 }
             }
 
             @Override
-            protected void visitResource(Path relativePath, byte[] content) throws IOException {
-                outputDirectory.writeFile(relativePath, content);
+            protected void visitResource(Path relativePath, Path file) throws IOException {
+                outputDirectory.copyFile(relativePath, file);
             }
         });
 
@@ -83,6 +177,373 @@ public class Retrobuffer {
         for (byte[] bytecode : transformed) {
             outputDirectory.writeClass(bytecode);
         }
+
+        removeTransformed(unchanged, analyzer);
+        for (Map.Entry<String, Path> c : unchanged.entrySet()) {
+            outputDirectory.copyClass(c.getKey(), c.getValue());
+        }
+    }
+
+    /**
+     * Only processes the files of the input tree that were added or changed
+     * since the previous run, as recorded in the given {@link InputManifest}
+     * file, and deletes the outputs of files that were removed.
+     * Classes are backported independently of each other, so the outputs of
+     * unchanged files remain valid.
+     */
+    private static void runIncremental(Transformer transformer, Map<Path, String> roots, Path outputDir, Path manifestFile,
+                                       int threads, boolean streaming) throws IOException {
+        InputManifest previous = InputManifest.load(manifestFile);
+        InputManifest current = new InputManifest();
+
+        int total = 0;
+        int processed = 0;
+        for (Map.Entry<Path, String> root : roots.entrySet()) {
+            Path inputDir = root.getKey();
+            String prefix = root.getValue();
+            List<Path> relativePaths = listFiles(inputDir, !prefix.isEmpty());
+            List<Path> changed = new ArrayList<>();
+            Map<Path, InputManifest.Entry> pending = new HashMap<>();
+            for (Path relativePath : relativePaths) {
+                Path file = inputDir.resolve(relativePath);
+                String key = prefix + InputManifest.key(relativePath);
+                BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                long size = attrs.size();
+                long lastModified = attrs.lastModifiedTime().toMillis();
+
+                InputManifest.Entry entry = previous.get(key);
+                boolean outputExists = entry != null && Files.exists(outputDir.resolve(entry.getOutput()));
+                if (outputExists && entry.getSize() == size && entry.getLastModified() == lastModified) {
+                    current.put(key, entry);
+                    continue;
+                }
+
+                String hash = InputManifest.hash(file);
+                if (outputExists && entry.getHash().equals(hash)) {
+                    current.put(key, new InputManifest.Entry(size, lastModified, hash, entry.getOutput()));
+                } else {
+                    changed.add(relativePath);
+                    pending.put(relativePath, new InputManifest.Entry(size, lastModified, hash, null));
+                }
+            }
+
+            Map<Path, String> outputs = streaming
+                    ? stream(transformer, inputDir, outputDir, changed, threads)
+                    : process(transformer, inputDir, outputDir, changed, threads);
+            for (Map.Entry<Path, String> output : outputs.entrySet()) {
+                InputManifest.Entry entry = pending.get(output.getKey());
+                current.put(prefix + InputManifest.key(output.getKey()),
+                        new InputManifest.Entry(entry.getSize(), entry.getLastModified(), entry.getHash(), output.getValue()));
+            }
+
+            total += relativePaths.size();
+            processed += changed.size();
+        }
+
+        Set<String> currentOutputs = new HashSet<>();
+        for (InputManifest.Entry entry : current.getEntries().values()) {
+            currentOutputs.add(entry.getOutput());
+        }
+        int removed = 0;
+        for (InputManifest.Entry entry : previous.getEntries().values()) {
+            if (!currentOutputs.contains(entry.getOutput()) && Files.deleteIfExists(outputDir.resolve(entry.getOutput()))) {
+                removed++;
+            }
+        }
+
+        current.save(manifestFile);
+
+        LOG.log(Level.INFO, "Retrobuffer processed " + processed + " of " + total
+                + " files, removed " + removed + " stale outputs");
+    }
+
+    /**
+     * Runs the same read, analyze, transform and write steps as the sequential
+     * run for the given files, spread over a fork-join pool with the given
+     * number of threads. The files are registered with the analyzer in the
+     * order in which they are listed, so that duplicate class names resolve to
+     * the same bytecode as in a sequential run.
+     *
+     * @return the path of each processed file relative to the output directory
+     */
+    private static Map<Path, String> process(Transformer transformer, Path inputDir, Path outputDir, List<Path> relativePaths, int threads) throws IOException {
+        ClassAnalyzer analyzer = new ClassAnalyzer();
+        OutputDirectory outputDirectory = new OutputDirectory(outputDir);
+
+        Map<Path, String> outputs = new LinkedHashMap<>();
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<InputClass> analyzed = invoke(pool, () -> relativePaths.parallelStream()
+                    .map(relativePath -> {
+                        try {
+                            Path file = inputDir.resolve(relativePath);
+                            if (!ClasspathVisitor.isJavaClass(relativePath)) {
+                                outputDirectory.copyFile(relativePath, file);
+                                return null;
+                            }
+                            byte[] content = Files.readAllBytes(file);
+                            String passthrough = passthroughClassName(content);
+                            if (passthrough != null) {
+                                return new InputClass(passthrough, null);
+                            }
+                            try {
+                                ClassInfo c = new ClassInfo(new ClassReader(content));
+                                return new InputClass(c.getType().getInternalName(), c);
+                            } catch (IllegalArgumentException e) {
+                                throw analyzeFailure(relativePath, e);
+                            }
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    })
+                    .collect(Collectors.toList()));
+
+            Map<String, Path> unchanged = new LinkedHashMap<>();
+            for (int i = 0; i < analyzed.size(); i++) {
+                Path relativePath = relativePaths.get(i);
+                InputClass c = analyzed.get(i);
+                if (c == null) {
+                    outputs.put(relativePath, InputManifest.key(relativePath));
+                    continue;
+                }
+                if (c.info != null) {
+                    analyzer.add(c.info);
+                } else {
+                    unchanged.put(c.name, inputDir.resolve(relativePath));
+                }
+                outputs.put(relativePath, c.name + ".class");
+            }
+            removeTransformed(unchanged, analyzer);
+
+            List<ClassInfo> classes = new ArrayList<>(analyzer.getInterfaces());
+            classes.addAll(analyzer.getClasses());
+
+            invoke(pool, () -> {
+                classes.parallelStream().forEach(c -> {
+                    try {
+                        outputDirectory.writeClass(transformer.backport(c.getReader()));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                unchanged.entrySet().parallelStream().forEach(c -> {
+                    try {
+                        outputDirectory.copyClass(c.getKey(), c.getValue());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                return null;
+            });
+        } finally {
+            pool.shutdown();
+        }
+
+        return outputs;
+    }
+
+    /**
+     * Transforms and writes every class as soon as it has been read, so that
+     * no bytecode is retained after its class has been written. Buffer
+     * invocations are updated one class at a time without looking at any
+     * other class, so no interface-first ordering is needed here. The only
+     * state that is kept is the name of every class that was written, which
+     * is used to detect classes with the same name. Those are written once
+     * more afterwards, in the order in which they are listed, so that the
+     * output is the same as for the other modes.
+     *
+     * @return the path of each processed file relative to the output directory
+     */
+    private static Map<Path, String> stream(Transformer transformer, Path inputDir, Path outputDir, List<Path> relativePaths, int threads) throws IOException {
+        OutputDirectory outputDirectory = new OutputDirectory(outputDir);
+
+        String[] outputs = new String[relativePaths.size()];
+        ConcurrentMap<String, Boolean> written = new ConcurrentHashMap<>();
+        Set<String> duplicates = ConcurrentHashMap.newKeySet();
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            invoke(pool, () -> {
+                IntStream.range(0, relativePaths.size()).parallel().forEach(i -> {
+                    Path relativePath = relativePaths.get(i);
+                    try {
+                        Path file = inputDir.resolve(relativePath);
+                        if (!ClasspathVisitor.isJavaClass(relativePath)) {
+                            outputDirectory.copyFile(relativePath, file);
+                            outputs[i] = InputManifest.key(relativePath);
+                            return;
+                        }
+
+                        byte[] content = Files.readAllBytes(file);
+                        String name = passthroughClassName(content);
+                        byte[] transformed = null;
+                        if (name == null) {
+                            ClassReader reader = readClass(relativePath, content);
+                            name = reader.getClassName();
+                            transformed = transformer.backport(reader);
+                        }
+                        outputs[i] = name + ".class";
+
+                        if (written.putIfAbsent(name, Boolean.TRUE) != null) {
+                            duplicates.add(name);
+                        } else if (transformed != null) {
+                            outputDirectory.writeClass(name, transformed);
+                        } else {
+                            outputDirectory.copyClass(name, file);
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                return null;
+            });
+        } finally {
+            pool.shutdown();
+        }
+
+        if (!duplicates.isEmpty()) {
+            writeDuplicates(inputDir, outputDirectory, transformer, relativePaths, outputs, duplicates);
+        }
+
+        Map<Path, String> result = new LinkedHashMap<>();
+        for (int i = 0; i < outputs.length; i++) {
+            result.put(relativePaths.get(i), outputs[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Picks the file that wins for every duplicate class name in the same way
+     * as {@link #process}, and writes it again.
+     */
+    private static void writeDuplicates(Path inputDir, OutputDirectory outputDirectory, Transformer transformer,
+                                        List<Path> relativePaths, String[] outputs, Set<String> duplicates) throws IOException {
+        Map<String, Path> winners = new HashMap<>();
+        Set<String> transformedWinners = new HashSet<>();
+        for (int i = 0; i < outputs.length; i++) {
+            Path relativePath = relativePaths.get(i);
+            if (!ClasspathVisitor.isJavaClass(relativePath)) {
+                continue;
+            }
+            String name = outputs[i].substring(0, outputs[i].length() - ".class".length());
+            if (!duplicates.contains(name)) {
+                continue;
+            }
+            Path file = inputDir.resolve(relativePath);
+            boolean transformed = passthroughClassName(Files.readAllBytes(file)) == null;
+            if (transformed || !transformedWinners.contains(name)) {
+                winners.put(name, relativePath);
+                if (transformed) {
+                    transformedWinners.add(name);
+                }
+            }
+        }
+
+        for (Map.Entry<String, Path> winner : winners.entrySet()) {
+            Path file = inputDir.resolve(winner.getValue());
+            if (transformedWinners.contains(winner.getKey())) {
+                ClassReader reader = readClass(winner.getValue(), Files.readAllBytes(file));
+                outputDirectory.writeClass(winner.getKey(), transformer.backport(reader));
+            } else {
+                outputDirectory.copyClass(winner.getKey(), file);
+            }
+        }
+    }
+
+    private static ClassReader readClass(Path relativePath, byte[] bytecode) {
+        try {
+            return new ClassReader(bytecode);
+        } catch (IllegalArgumentException e) {
+            throw analyzeFailure(relativePath, e);
+        }
+    }
+
+    /**
+     * Returns the name of the class when it does not reference any of the
+     * buffer classes that need updating, in which case the class file can be
+     * copied as is. Returns <code>null</code> when the class must go through
+     * ASM, which includes class files that can not be scanned or that were
+     * compiled for a release that ASM will refuse.
+     */
+    private static String passthroughClassName(byte[] bytecode) {
+        try {
+            ConstantPool constantPool = new ConstantPool(bytecode);
+            if (constantPool.getMajorVersion() > Opcodes.V1_8 || UpdateBufferMethods.appliesTo(constantPool)) {
+                return null;
+            }
+            return constantPool.getClassName();
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A transformed class takes precedence over an unchanged class file with
+     * the same name, as they are written to the same output file.
+     */
+    private static void removeTransformed(Map<String, Path> unchanged, ClassAnalyzer analyzer) {
+        for (ClassInfo c : analyzer.getInterfaces()) {
+            unchanged.remove(c.getType().getInternalName());
+        }
+        for (ClassInfo c : analyzer.getClasses()) {
+            unchanged.remove(c.getType().getInternalName());
+        }
+    }
+
+    /**
+     * Lists the files of an input root in walk order. Only the class files of
+     * a jar are processed, leaving out the classes for other releases in
+     * META-INF/versions, just like the classes that are copied for desugaring.
+     */
+    private static List<Path> listFiles(Path inputDir, boolean classesOnly) throws IOException {
+        List<Path> relativePaths = new ArrayList<>();
+        Files.walkFileTree(inputDir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                Path relativePath = inputDir.relativize(file);
+                if (!classesOnly || (ClasspathVisitor.isJavaClass(relativePath)
+                        && !InputManifest.key(relativePath).startsWith("META-INF/versions/"))) {
+                    relativePaths.add(relativePath);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return relativePaths;
+    }
+
+    private static <T> T invoke(ForkJoinPool pool, Callable<T> task) throws IOException {
+        try {
+            return pool.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private static RuntimeException analyzeFailure(Path relativePath, IllegalArgumentException e) {
+        return new RuntimeException("Failed to analyze class: '" + relativePath + "'.\nClasses compiled with JDK 9 or later are currently not supported on Android. Please make sure that your project does not contain JDK 9+ dependencies.", e);
+    }
+
+    private static final class InputClass {
+
+        private final String name;
+        private final ClassInfo info;
+
+        private InputClass(String name, ClassInfo info) {
+            this.name = name;
+            this.info = info;
+        }
     }
 
     private static URL[] asUrls(List<Path> classpath) {
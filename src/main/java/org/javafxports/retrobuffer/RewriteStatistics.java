@@ -29,57 +29,53 @@
  * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
  * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
-package org.javafxports.jfxmobile.plugin.android.task;
+package org.javafxports.retrobuffer;
 
-import org.gradle.api.DefaultTask;
-import org.gradle.api.tasks.InputFile;
-import org.gradle.api.tasks.OutputFile;
-import org.gradle.api.tasks.TaskAction;
+import java.util.concurrent.atomic.AtomicLongArray;
 
-import java.io.File;
-import java.util.Arrays;
-
-public class ZipAlign extends DefaultTask {
-
-    @InputFile
-    private File zipAlignExe;
-
-    @InputFile
-    private File inputFile;
-    @OutputFile
-    private File outputFile;
-
-    public File getZipAlignExe() {
-        return zipAlignExe;
-    }
+/**
+ * Counts the invocations that were redirected by every rule during a run.
+ * Safe to update from several threads at once.
+ */
+public class RewriteStatistics {
 
-    public void setZipAlignExe(File zipAlignExe) {
-        this.zipAlignExe = zipAlignExe;
-    }
+    private final MethodRewriteRules rules;
+    private final AtomicLongArray counts;
 
-    public File getInputFile() {
-        return inputFile;
+    public RewriteStatistics(MethodRewriteRules rules) {
+        this.rules = rules;
+        this.counts = new AtomicLongArray(rules.size());
     }
 
-    public void setInputFile(File inputFile) {
-        this.inputFile = inputFile;
+    public void record(MethodRewriteRules.Rule rule) {
+        counts.incrementAndGet(rule.getIndex());
     }
 
-    public File getOutputFile() {
-        return outputFile;
+    public long getCount(MethodRewriteRules.Rule rule) {
+        return counts.get(rule.getIndex());
     }
 
-    public void setOutputFile(File outputFile) {
-        this.outputFile = outputFile;
+    public long getTotal() {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        return total;
     }
 
-    @TaskAction
-    void action() {
-        getProject().exec(execSpec -> {
-            execSpec.setExecutable(getZipAlignExe());
-            execSpec.setArgs(Arrays.asList(
-                    "-f", "4", getInputFile().getAbsolutePath(), getOutputFile().getAbsolutePath()
-            ));
-        });
+    /** Returns the number of invocations per rule, leaving out the rules that were not applied. */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (MethodRewriteRules.Rule rule : rules.getRules()) {
+            long count = getCount(rule);
+            if (count > 0) {
+                if (sb.length() > 0) {
+                    sb.append(", ");
+                }
+                sb.append(rule).append(": ").append(count);
+            }
+        }
+        return sb.toString();
     }
 }
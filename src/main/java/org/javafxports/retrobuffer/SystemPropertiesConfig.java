@@ -36,6 +36,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
 import java.util.stream.Collectors;
@@ -48,6 +49,13 @@ public class SystemPropertiesConfig {
     private static final String CLASSPATH_FILE = CLASSPATH + "File";
     private static final String INPUT_DIR = PREFIX + "inputDir";
     private static final String OUTPUT_DIR = PREFIX + "outputDir";
+    private static final String INPUT_JARS = PREFIX + "inputJars";
+    private static final String INPUT_JARS_FILE = INPUT_JARS + "File";
+    private static final String OUTPUT_JAR = PREFIX + "outputJar";
+    private static final String THREADS = PREFIX + "threads";
+    private static final String INCREMENTAL = PREFIX + "incremental";
+    private static final String STREAMING = PREFIX + "streaming";
+    private static final String MANIFEST_FILE = PREFIX + "manifestFile";
 
     private final Properties p;
 
@@ -55,11 +63,18 @@ public class SystemPropertiesConfig {
         this.p = properties;
     }
 
+    /**
+     * Returns the input directory, or <code>null</code> when there is none
+     * but the input is read from jars instead.
+     */
     public Path getInputDir() {
         String inputDir = p.getProperty(INPUT_DIR);
         if (inputDir != null) {
             return Paths.get(inputDir);
         }
+        if (!getInputJars().isEmpty()) {
+            return null;
+        }
         throw new IllegalArgumentException("Missing required property: " + INPUT_DIR);
     }
 
@@ -68,7 +83,35 @@ public class SystemPropertiesConfig {
         if (outputDir != null) {
             return Paths.get(outputDir);
         }
-        return getInputDir();
+        Path inputDir = getInputDir();
+        if (inputDir != null) {
+            return inputDir;
+        }
+        throw new IllegalArgumentException("Missing required property: " + OUTPUT_DIR);
+    }
+
+    public List<Path> getInputJars() {
+        String inputJars = p.getProperty(INPUT_JARS);
+        if (inputJars != null) {
+            return parsePathList(inputJars);
+        }
+        String inputJarsFile = p.getProperty(INPUT_JARS_FILE);
+        if (inputJarsFile != null) {
+            return readPathList(Paths.get(inputJarsFile));
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Returns the jar to write the output to, or <code>null</code> when the
+     * output is written to the output directory.
+     */
+    public Path getOutputJar() {
+        String outputJar = p.getProperty(OUTPUT_JAR);
+        if (outputJar != null) {
+            return Paths.get(outputJar);
+        }
+        return null;
     }
 
     public List<Path> getClasspath() {
@@ -83,6 +126,41 @@ public class SystemPropertiesConfig {
         throw new IllegalArgumentException("Missing required property: " + CLASSPATH);
     }
 
+    public int getThreads() {
+        String threads = p.getProperty(THREADS);
+        if (threads != null) {
+            try {
+                return Math.max(1, Integer.parseInt(threads.trim()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value for property " + THREADS + ": " + threads, e);
+            }
+        }
+        return 1;
+    }
+
+    public boolean isIncremental() {
+        return Boolean.parseBoolean(p.getProperty(INCREMENTAL, "false"));
+    }
+
+    public boolean isStreaming() {
+        return Boolean.parseBoolean(p.getProperty(STREAMING, "false"));
+    }
+
+    /**
+     * Returns the file in which an incremental run keeps its
+     * {@link InputManifest}. Defaults to a file next to the output directory
+     * or jar, so that the manifest never ends up among the outputs.
+     */
+    public Path getManifestFile() {
+        String manifestFile = p.getProperty(MANIFEST_FILE);
+        if (manifestFile != null) {
+            return Paths.get(manifestFile);
+        }
+        Path outputJar = getOutputJar();
+        Path output = (outputJar != null ? outputJar : getOutputDir()).toAbsolutePath();
+        return Paths.get(output + InputManifest.FILE_NAME);
+    }
+
     private static List<Path> parsePathList(String paths) {
         return Stream.of(paths.split(File.pathSeparator))
                 .filter(path -> !path.isEmpty())
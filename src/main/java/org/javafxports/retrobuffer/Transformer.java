@@ -35,24 +35,40 @@ import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
 
+import java.util.Set;
 import java.util.function.Consumer;
 
 public class Transformer {
 
+    private final RewriteStatistics statistics = new RewriteStatistics(MethodRewriteRules.getDefault());
+
+    /** Returns the number of invocations that were updated by this transformer so far. */
+    public RewriteStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Updates the buffer method invocations of the class. The class writer is
+     * seeded with the reader, so that the constant pool is copied and the
+     * methods without any invocation to update are copied as raw bytes instead
+     * of being parsed and written again. Only the return type in the
+     * descriptor of an invocation changes, which leaves the stack sizes of the
+     * updated methods as they are, so they are not computed again either.
+     */
     public byte[] backport(ClassReader reader) {
+        Set<String> methods = UpdateBufferMethods.findMethods(reader);
         return transform(reader, (next) -> {
-            next = new UpdateBufferMethods(next);
+            next = new UpdateBufferMethods(next, methods, statistics);
             return next;
         });
     }
 
     private byte[] transform(ClassReader reader, ClassVisitorChain chain) {
-        return transform(reader.getClassName(), cv -> reader.accept(cv, 0), chain);
+        return transform(reader.getClassName(), new ClassWriter(reader, 0), cv -> reader.accept(cv, 0), chain);
     }
 
-    private byte[] transform(String className, Consumer<ClassVisitor> reader, ClassVisitorChain chain) {
+    private byte[] transform(String className, ClassWriter writer, Consumer<ClassVisitor> reader, ClassVisitorChain chain) {
         try {
-            ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
             ClassVisitor next = writer;
 
             next = chain.wrap(next);
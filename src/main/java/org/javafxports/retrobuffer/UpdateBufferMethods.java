@@ -31,64 +31,86 @@
  */
 package org.javafxports.retrobuffer;
 
+import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.List;
-import java.util.Objects;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import java.util.stream.Collectors;
+import java.util.HashSet;
+import java.util.Set;
 
 public class UpdateBufferMethods extends ClassVisitor {
 
-    private static final Logger LOG = Logger.getLogger(UpdateBufferMethods.class.getName());
-
-    private String methodOwner;
-
-    private static final List<String> owners = Arrays.asList("java/nio/ByteBuffer",
-            "java/nio/CharBuffer", "java/nio/DoubleBuffer", "java/nio/FloatBuffer",
-            "java/nio/IntBuffer", "java/nio/LongBuffer", "java/nio/ShortBuffer",
-            "java/nio/MappedByteBuffer");
-
-    private static final List<String> names = Arrays.asList("clear", "flip",
-            "limit", "mark", "position", "reset", "rewind");
-
-    private static final List<MethodInstruction> methodInstructions = owners.stream()
-            .map(owner -> names.stream()
-                    .map(name -> new MethodInstruction(owner, name))
-                    .collect(Collectors.toList()))
-            .flatMap(Collection::stream)
-            .collect(Collectors.toList());
+    private final Set<String> methods;
+    private final MethodRewriteRules rules;
+    private final RewriteStatistics statistics;
 
     public UpdateBufferMethods(ClassVisitor next) {
+        this(next, null, null);
+    }
+
+    /**
+     * @param methods the name and descriptor of the methods that contain an
+     * invocation that must be updated, as returned by {@link #findMethods},
+     * or <code>null</code> to visit the code of every method. Other methods
+     * are passed on to the next visitor directly, which allows a
+     * {@link org.objectweb.asm.ClassWriter} to copy them as is.
+     * @param statistics counts the updated invocations, may be <code>null</code>
+     */
+    public UpdateBufferMethods(ClassVisitor next, Set<String> methods, RewriteStatistics statistics) {
         super(Opcodes.ASM5, next);
+
+        this.methods = methods;
+        this.rules = MethodRewriteRules.getDefault();
+        this.statistics = statistics;
     }
 
-    @Override
-    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
-        super.visit(version, access, name, signature, superName, interfaces);
+    /**
+     * Returns whether a class with the given constant pool references one of
+     * the buffer classes whose method invocations need to be updated.
+     */
+    public static boolean appliesTo(ConstantPool constantPool) {
+        return constantPool.containsUtf8(MethodRewriteRules.getDefault().getOwners());
+    }
 
-        this.methodOwner = name;
+    /**
+     * Returns the name and descriptor of every method of the class that
+     * contains at least one invocation that must be updated.
+     */
+    public static Set<String> findMethods(ClassReader reader) {
+        MethodRewriteRules rules = MethodRewriteRules.getDefault();
+        Set<String> methods = new HashSet<>();
+        reader.accept(new ClassVisitor(Opcodes.ASM5) {
+            @Override
+            public MethodVisitor visitMethod(int access, String methodName, String methodDesc, String signature, String[] exceptions) {
+                return new MethodVisitor(Opcodes.ASM5) {
+                    @Override
+                    public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+                        if (find(rules, opcode, owner, name, desc) != null) {
+                            methods.add(methodName + methodDesc);
+                        }
+                    }
+                };
+            }
+        }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        return methods;
     }
 
     @Override
     public MethodVisitor visitMethod(int access, String methodName, String desc, String signature, String[] exceptions) {
         MethodVisitor next = super.visitMethod(access, methodName, desc, signature, exceptions);
+        if (methods != null && !methods.contains(methodName + desc)) {
+            return next;
+        }
         return new MethodVisitor(Opcodes.ASM5, next) {
             @Override
             public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
-                if (opcode == Opcodes.INVOKEVIRTUAL) {
-                    MethodInstruction lookup = new MethodInstruction(owner, name, desc);
-                    if (methodInstructions.contains(lookup)) {
-                        LOG.log(Level.INFO, "Transforming java.nio.Buffer invocation in " + methodOwner + "." + methodName + ": " + owner + "." + name + " " + desc);
-                        super.visitMethodInsn(opcode, owner, name, desc.substring(0, desc.indexOf("L") + 1) + "java/nio/Buffer;", itf);
-                    } else {
-                        super.visitMethodInsn(opcode, owner, name, desc, itf);
+                MethodRewriteRules.Rule rule = find(rules, opcode, owner, name, desc);
+                if (rule != null) {
+                    if (statistics != null) {
+                        statistics.record(rule);
                     }
+                    super.visitMethodInsn(opcode, owner, name, rule.getNewDesc(), itf);
                 } else {
                     super.visitMethodInsn(opcode, owner, name, desc, itf);
                 }
@@ -96,46 +118,7 @@ public class UpdateBufferMethods extends ClassVisitor {
         };
     }
 
-    private static final class MethodInstruction {
-
-        private final String owner;
-        private final String name;
-        private final String desc;
-
-        public MethodInstruction(String owner, String name) {
-            this.owner = owner;
-            this.name = name;
-
-            switch (name) {
-                case "limit":
-                case "position":
-                    this.desc = "(I)L" + owner + ";";
-                    break;
-                default:
-                    this.desc = "()L" + owner + ";";
-                    break;
-            }
-        }
-
-        public MethodInstruction(String owner, String name, String desc) {
-            this.owner = owner;
-            this.name = name;
-            this.desc = desc;
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            MethodInstruction that = (MethodInstruction) o;
-            return Objects.equals(owner, that.owner) &&
-                    Objects.equals(name, that.name) &&
-                    Objects.equals(desc, that.desc);
-        }
-
-        @Override
-        public int hashCode() {
-            return Objects.hash(owner, name, desc);
-        }
+    private static MethodRewriteRules.Rule find(MethodRewriteRules rules, int opcode, String owner, String name, String desc) {
+        return opcode == Opcodes.INVOKEVIRTUAL ? rules.find(owner, name, desc) : null;
     }
 }
@@ -0,0 +1,332 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2018, Gluon Software
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.javafxports.jfxmobile.plugin.android.task;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyFactory;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class SignedJarBuilderTest {
+
+    private static final int MIN_SDK = 21;
+    private static final int APK_SIGNATURE_SCHEME_V2_BLOCK_ID = 0x7109871a;
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private PrivateKey key;
+    private X509Certificate certificate;
+
+    private File apk;
+    private File index;
+    private File sources;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream in = getClass().getResourceAsStream("test.jks")) {
+            keyStore.load(in, "android".toCharArray());
+        }
+        key = (PrivateKey) keyStore.getKey("test", "android".toCharArray());
+        certificate = (X509Certificate) keyStore.getCertificate("test");
+
+        apk = new File(temporaryFolder.getRoot(), "app.apk");
+        index = new File(temporaryFolder.getRoot(), "app.apk.index");
+        sources = temporaryFolder.newFolder("sources");
+    }
+
+    /**
+     * An entry that is changed, removed and added again is updated in place: the
+     * entries that did not change stay where they are, and the archive keeps its
+     * contents, its alignment and a valid v2 signature after every update.
+     */
+    @Test
+    public void updatesEntriesInPlace() throws Exception {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("assets/a.txt", "first version".getBytes(StandardCharsets.UTF_8));
+        entries.put("assets/b.txt", "removed and added again".getBytes(StandardCharsets.UTF_8));
+        entries.put("assets/icon.png", bytes(3001, 1));
+        entries.put("lib/armeabi/libnative.so", bytes(10000, 2));
+
+        build(entries);
+        Map<String, Long> offsets = checkApk(entries);
+
+        entries.put("assets/a.txt", "second, longer version".getBytes(StandardCharsets.UTF_8));
+        entries.remove("assets/b.txt");
+        build(entries);
+        Map<String, Long> updated = checkApk(entries);
+        assertEquals(offsets.get("assets/icon.png"), updated.get("assets/icon.png"));
+        assertEquals(offsets.get("lib/armeabi/libnative.so"), updated.get("lib/armeabi/libnative.so"));
+
+        entries.put("assets/b.txt", "removed and added again".getBytes(StandardCharsets.UTF_8));
+        build(entries);
+        updated = checkApk(entries);
+        assertEquals(offsets.get("assets/icon.png"), updated.get("assets/icon.png"));
+        assertEquals(offsets.get("lib/armeabi/libnative.so"), updated.get("lib/armeabi/libnative.so"));
+    }
+
+    /**
+     * Writes the given entries to the APK, updating the APK of the previous build
+     * through its index. Only the sources that changed get a new modification time.
+     */
+    private void build(Map<String, byte[]> entries) throws Exception {
+        SignedJarBuilder builder = new SignedJarBuilder(apk, index, key, certificate, MIN_SDK, true, true);
+        builder.setCompressionPolicy(new CompressionPolicy(6, Arrays.asList("*.png", "*.so"), true));
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            File source = new File(sources, entry.getKey());
+            if (!source.isFile() || !Arrays.equals(Files.readAllBytes(source.toPath()), entry.getValue())) {
+                source.getParentFile().mkdirs();
+                Files.write(source.toPath(), entry.getValue());
+            }
+            builder.writeFile(source, entry.getKey());
+        }
+        builder.close();
+        assertTrue(index.isFile());
+    }
+
+    /**
+     * Checks the contents, the alignment and the signatures of the APK.
+     * @return the offset of the local header of every entry.
+     */
+    private Map<String, Long> checkApk(Map<String, byte[]> entries) throws Exception {
+        try (JarFile jar = new JarFile(apk, true)) {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                JarEntry jarEntry = jar.getJarEntry(entry.getKey());
+                assertNotNull(entry.getKey(), jarEntry);
+                try (InputStream in = jar.getInputStream(jarEntry)) {
+                    assertArrayEquals(entry.getKey(), entry.getValue(), readFully(in));
+                }
+                assertNotNull(entry.getKey(), jarEntry.getCodeSigners());
+            }
+            assertEquals(entries.containsKey("assets/b.txt"), jar.getEntry("assets/b.txt") != null);
+        }
+
+        ByteBuffer archive = ByteBuffer.wrap(Files.readAllBytes(apk.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        Map<String, Long> offsets = checkAlignment(archive);
+        verifySchemeV2(archive);
+        return offsets;
+    }
+
+    /** Stored entries are aligned on 4 bytes, and native libraries on 4096 bytes. */
+    private static Map<String, Long> checkAlignment(ByteBuffer archive) {
+        int eocd = findEndOfCentralDirectory(archive);
+        int count = archive.getShort(eocd + 10) & 0xffff;
+        int offset = archive.getInt(eocd + 16);
+
+        Map<String, Long> offsets = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            assertEquals(0x02014b50, archive.getInt(offset));
+            int method = archive.getShort(offset + 10) & 0xffff;
+            int nameLength = archive.getShort(offset + 28) & 0xffff;
+            int extraLength = archive.getShort(offset + 30) & 0xffff;
+            int commentLength = archive.getShort(offset + 32) & 0xffff;
+            long localHeaderOffset = archive.getInt(offset + 42) & 0xffffffffL;
+            String name = string(archive, offset + 46, nameLength);
+            offsets.put(name, localHeaderOffset);
+
+            int local = (int) localHeaderOffset;
+            assertEquals(name, 0x04034b50, archive.getInt(local));
+            long dataOffset = local + 30 + (archive.getShort(local + 26) & 0xffff)
+                    + (archive.getShort(local + 28) & 0xffff);
+            if (method == ZipEntry.STORED) {
+                int alignment = name.endsWith(".so") ? 4096 : 4;
+                assertEquals(name + " at " + dataOffset, 0, dataOffset % alignment);
+            }
+            offset += 46 + nameLength + extraLength + commentLength;
+        }
+        return offsets;
+    }
+
+    /**
+     * Verifies the APK Signature Scheme v2 block: the digest of the contents of
+     * the APK, the signature of the signed data and the certificate of the signer.
+     */
+    private void verifySchemeV2(ByteBuffer archive) throws Exception {
+        int eocd = findEndOfCentralDirectory(archive);
+        int centralDirectorySize = archive.getInt(eocd + 12);
+        int centralDirectoryOffset = archive.getInt(eocd + 16);
+
+        assertEquals("APK Sig Block 42", string(archive, centralDirectoryOffset - 16, 16));
+        long blockSize = archive.getLong(centralDirectoryOffset - 24);
+        int blockOffset = (int) (centralDirectoryOffset - blockSize - 8);
+        assertEquals(blockSize, archive.getLong(blockOffset));
+
+        ByteBuffer schemeV2 = null;
+        for (int pair = blockOffset + 8; pair < centralDirectoryOffset - 24; ) {
+            long length = archive.getLong(pair);
+            if (archive.getInt(pair + 8) == APK_SIGNATURE_SCHEME_V2_BLOCK_ID) {
+                schemeV2 = slice(archive, pair + 12, (int) length - 4);
+            }
+            pair += 8 + length;
+        }
+        assertNotNull("no APK Signature Scheme v2 block", schemeV2);
+
+        ByteBuffer signer = lengthPrefixed(lengthPrefixed(schemeV2));
+        ByteBuffer signedData = lengthPrefixed(signer);
+        ByteBuffer signature = lengthPrefixed(lengthPrefixed(signer));
+        byte[] publicKey = bytes(lengthPrefixed(signer));
+
+        byte[] signed = bytes(signedData.duplicate());
+        ByteBuffer digest = lengthPrefixed(lengthPrefixed(signedData));
+        byte[] certificateBytes = bytes(lengthPrefixed(lengthPrefixed(signedData)));
+
+        int digestAlgorithm = digest.getInt();
+        int signatureAlgorithm = signature.getInt();
+        assertEquals(signatureAlgorithm, digestAlgorithm);
+        assertEquals(0x0103, signatureAlgorithm);
+
+        PublicKey signerKey = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(publicKey));
+        Signature verifier = Signature.getInstance("SHA256withRSA");
+        verifier.initVerify(signerKey);
+        verifier.update(signed);
+        assertTrue("v2 signature does not verify", verifier.verify(bytes(lengthPrefixed(signature))));
+        assertArrayEquals(certificate.getEncoded(), certificateBytes);
+        assertArrayEquals(certificate.getPublicKey().getEncoded(), publicKey);
+
+        // the offset of the central directory is replaced by the offset of the signing block
+        ByteBuffer endOfCentralDirectory = ByteBuffer.allocate(archive.capacity() - eocd).order(ByteOrder.LITTLE_ENDIAN);
+        endOfCentralDirectory.put(slice(archive, eocd, archive.capacity() - eocd));
+        endOfCentralDirectory.putInt(16, blockOffset);
+        endOfCentralDirectory.rewind();
+
+        byte[] expected = contentDigest(slice(archive, 0, blockOffset),
+                slice(archive, centralDirectoryOffset, centralDirectorySize), endOfCentralDirectory);
+        assertArrayEquals("v2 content digest does not match", expected, bytes(lengthPrefixed(digest)));
+    }
+
+    private static byte[] contentDigest(ByteBuffer... sections) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        ByteArrayOutputStream chunkDigests = new ByteArrayOutputStream();
+        int chunks = 0;
+        for (ByteBuffer section : sections) {
+            while (section.hasRemaining()) {
+                int size = Math.min(section.remaining(), CHUNK_SIZE);
+                ByteBuffer chunk = section.slice();
+                chunk.limit(size);
+                section.position(section.position() + size);
+
+                digest.update((byte) 0xa5);
+                digest.update(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(0, size).array());
+                digest.update(chunk);
+                chunkDigests.write(digest.digest());
+                chunks++;
+            }
+        }
+        digest.update((byte) 0x5a);
+        digest.update(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(0, chunks).array());
+        digest.update(chunkDigests.toByteArray());
+        return digest.digest();
+    }
+
+    private static int findEndOfCentralDirectory(ByteBuffer archive) {
+        for (int offset = archive.capacity() - 22; offset >= 0; offset--) {
+            if (archive.getInt(offset) == 0x06054b50) {
+                return offset;
+            }
+        }
+        throw new AssertionError("no end of central directory");
+    }
+
+    /** Reads a length-prefixed value, and moves the position of the buffer after it. */
+    private static ByteBuffer lengthPrefixed(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        ByteBuffer value = slice(buffer, buffer.position(), length);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(offset);
+        slice.limit(offset + length);
+        return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] bytes(int size, int seed) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) (i * 31 + seed);
+        }
+        return bytes;
+    }
+
+    private static String string(ByteBuffer buffer, int offset, int length) {
+        return new String(bytes(slice(buffer, offset, length)), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+}
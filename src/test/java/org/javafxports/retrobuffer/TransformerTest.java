@@ -0,0 +1,206 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2018, Gluon Software
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.javafxports.retrobuffer;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.util.TraceClassVisitor;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class TransformerTest {
+
+    private static final String FIXTURE = "org/javafxports/retrobuffer/Fixture";
+
+    /**
+     * The class writer seeded with the reader must produce the same code as the
+     * fresh writer that computed the maximum stack size and number of locals.
+     */
+    @Test
+    public void seededWriterProducesSameCode() {
+        byte[] fixture = createFixture();
+
+        byte[] computed = backportWithComputedMaxs(new ClassReader(fixture));
+        byte[] seeded = new Transformer().backport(new ClassReader(fixture));
+
+        String text = textify(seeded);
+        assertEquals(textify(computed), text);
+        assertTrue(text.contains("java/nio/ByteBuffer.flip ()Ljava/nio/Buffer;"));
+        assertTrue(text.contains("java/nio/ShortBuffer.mark ()Ljava/nio/Buffer;"));
+    }
+
+    /**
+     * The methods without an invocation to update are copied as they are.
+     */
+    @Test
+    public void methodsWithoutUpdatedInvocationsAreCopied() throws IOException {
+        byte[] fixture = createFixture();
+        byte[] seeded = new Transformer().backport(new ClassReader(fixture));
+
+        Map<String, byte[]> before = getMethods(fixture);
+        Map<String, byte[]> after = getMethods(seeded);
+        assertEquals(before.keySet(), after.keySet());
+        for (String method : new String[] { "twice(I)I", "get(Ljava/nio/ByteBuffer;)B" }) {
+            assertNotNull(method, before.get(method));
+            assertArrayEquals(method, before.get(method), after.get(method));
+        }
+        assertFalse(Arrays.equals(before.get("byteBuffer(Ljava/nio/ByteBuffer;)V"),
+                after.get("byteBuffer(Ljava/nio/ByteBuffer;)V")));
+    }
+
+    /** How classes were backported before the writer was seeded with the reader. */
+    private static byte[] backportWithComputedMaxs(ClassReader reader) {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        reader.accept(new UpdateBufferMethods(writer), 0);
+        return writer.toByteArray();
+    }
+
+    private static String textify(byte[] classFile) {
+        StringWriter text = new StringWriter();
+        new ClassReader(classFile).accept(new TraceClassVisitor(new PrintWriter(text)), 0);
+        return text.toString();
+    }
+
+    /**
+     * Creates a class, as compiled against JDK 9 or later, that invokes the covariant
+     * methods of ByteBuffer, CharBuffer, IntBuffer and ShortBuffer.
+     */
+    private static byte[] createFixture() {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, FIXTURE, null, "java/lang/Object", null);
+
+        addBufferMethod(writer, "byteBuffer", "java/nio/ByteBuffer", "position", "flip");
+        addBufferMethod(writer, "charBuffer", "java/nio/CharBuffer", "limit", "clear");
+        addBufferMethod(writer, "intBuffer", "java/nio/IntBuffer", "position", "rewind");
+        addBufferMethod(writer, "shortBuffer", "java/nio/ShortBuffer", "limit", "mark");
+
+        MethodVisitor mv = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "twice", "(I)I", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ILOAD, 0);
+        mv.visitInsn(Opcodes.ICONST_2);
+        mv.visitInsn(Opcodes.IMUL);
+        mv.visitInsn(Opcodes.IRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        // a buffer method that has no covariant override
+        mv = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "get", "(Ljava/nio/ByteBuffer;)B", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/nio/ByteBuffer", "get", "()B", false);
+        mv.visitInsn(Opcodes.IRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    private static void addBufferMethod(ClassWriter writer, String methodName, String buffer,
+            String intMethod, String noArgMethod) {
+        MethodVisitor mv = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, methodName,
+                "(L" + buffer + ";)V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitInsn(Opcodes.ICONST_0);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, buffer, intMethod, "(I)L" + buffer + ";", false);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, buffer, noArgMethod, "()L" + buffer + ";", false);
+        mv.visitVarInsn(Opcodes.ASTORE, 1);
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, buffer, "remaining", "()I", false);
+        mv.visitInsn(Opcodes.POP);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /** Returns the raw bytes of the method_info structures of a class file, by name and descriptor. */
+    private static Map<String, byte[]> getMethods(byte[] classFile) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(classFile));
+        in.skipBytes(8);
+        int constantPoolCount = in.readUnsignedShort();
+        String[] utf8 = new String[constantPoolCount];
+        for (int i = 1; i < constantPoolCount; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1: utf8[i] = in.readUTF(); break;
+                case 7: case 8: case 16: in.skipBytes(2); break;
+                case 15: in.skipBytes(3); break;
+                case 3: case 4: case 9: case 10: case 11: case 12: case 18: in.skipBytes(4); break;
+                case 5: case 6: in.skipBytes(8); i++; break;
+                default: throw new IOException("Unknown constant pool tag " + tag);
+            }
+        }
+        in.skipBytes(6);
+        in.skipBytes(2 * in.readUnsignedShort());
+        readMembers(in, classFile, utf8);
+        return readMembers(in, classFile, utf8);
+    }
+
+    private static Map<String, byte[]> readMembers(DataInputStream in, byte[] classFile, String[] utf8)
+            throws IOException {
+        Map<String, byte[]> members = new HashMap<>();
+        int count = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            int start = classFile.length - in.available();
+            in.skipBytes(2);
+            String name = utf8[in.readUnsignedShort()];
+            String desc = utf8[in.readUnsignedShort()];
+            int attributeCount = in.readUnsignedShort();
+            for (int j = 0; j < attributeCount; j++) {
+                in.skipBytes(2);
+                in.skipBytes(in.readInt());
+            }
+            int end = classFile.length - in.available();
+            byte[] member = new byte[end - start];
+            System.arraycopy(classFile, start, member, 0, member.length);
+            members.put(name + desc, member);
+        }
+        return members;
+    }
+}